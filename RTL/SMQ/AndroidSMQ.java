@@ -130,10 +130,11 @@ public class AndroidSMQ extends SMQ {
     }
 
     @Override
-    void smqOnMsg(final IntfOnMsg om, final Msg msg) {
+    void smqOnMsg(final IntfOnMsg om, Msg msg) {
+        final Msg m = msg.detach();
         Runnable r = new Runnable() {
             public void run() {
-                om.smqOnMsg(msg);
+                om.smqOnMsg(m);
             }
         };
         mainHandler.post(r);
@@ -159,6 +160,26 @@ public class AndroidSMQ extends SMQ {
         mainHandler.post(r);
     }
 
+    @Override
+    void smqOnDisconnect(final IntfOnReconnect l, final SmqException e) {
+        Runnable r = new Runnable() {
+            public void run() {
+                l.smqOnDisconnect(e);
+            }
+        };
+        mainHandler.post(r);
+    }
+
+    @Override
+    void smqOnReconnect(final IntfOnReconnect l, final int attempts) {
+        Runnable r = new Runnable() {
+            public void run() {
+                l.smqOnReconnect(attempts);
+            }
+        };
+        mainHandler.post(r);
+    }
+
     Handler mainHandler = new Handler(Looper.getMainLooper());
 
 };
@@ -0,0 +1,49 @@
+package RTL.SMQ;
+
+import java.util.Arrays;
+
+/** Pool of byte arrays organized in size classes. The SMQ stack
+    encodes outgoing frames directly into buffers taken from the pool
+    and the upstream thread returns the buffers after writing the
+    frames to the socket. The pool never blocks: get allocates a new
+    buffer if the size class is empty, and release drops the buffer
+    if the size class is full.
+ */
+final class BufPool
+{
+  static final int[] DEFAULT_SIZES = {64, 256, 1024, 4096, 16384, 0xFFFF};
+
+  BufPool(int[] sizeClasses, int buffersPerClass)
+  {
+    _sizes = sizeClasses.clone();
+    Arrays.sort(_sizes);
+    @SuppressWarnings({"unchecked","rawtypes"}) // No generic arrays
+    RingQ<byte[]>[] free = new RingQ[_sizes.length];
+    for(int i=0 ; i < _sizes.length ; i++)
+      free[i] = new RingQ<byte[]>(buffersPerClass);
+    _free=free;
+  }
+
+  /** Returns a buffer with a length equal to or larger than 'size'.
+   */
+  final byte[] get(int size)
+  {
+    for(int i=0 ; i < _sizes.length ; i++) {
+      if(_sizes[i] >= size) {
+        byte[] b = _free[i].poll();
+        return b != null ? b : new byte[_sizes[i]];
+      }
+    }
+    return new byte[size];
+  }
+
+  final void release(byte[] b)
+  {
+    int ix = Arrays.binarySearch(_sizes, b.length);
+    if(ix >= 0)
+      _free[ix].offer(b);
+  }
+
+  private final int[] _sizes;
+  private final RingQ<byte[]>[] _free;
+};
@@ -0,0 +1,66 @@
+package RTL.SMQ;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded queue keeping the most recent messages received without
+    a subscriber; install the queue by calling {@link
+    SMQ#setDeadLetter}. When the queue is full, the oldest message is
+    dropped. Adding a message does not lock, thus the thread reading
+    messages from the broker is never blocked by the application
+    inspecting the queue. The queue is thread safe.
+    <pre>
+    DeadLetterQueue dlq = new DeadLetterQueue(100);
+    smq.setDeadLetter(dlq);
+    ...
+    for(Msg m ; (m = dlq.poll()) != null ; )
+      log("Unroutable message for tid " + m.getTid());
+    </pre>
+ */
+public final class DeadLetterQueue implements IntfOnMsg
+{
+  /** Create a queue.
+      @param capacity the maximum number of messages kept.
+   */
+  public DeadLetterQueue(int capacity)
+  {
+    _q = new RingQ<Msg>(Math.max(capacity, 1));
+    _capacity = Math.max(capacity, 1);
+  }
+
+  /** Called by the SMQ stack; adds a copy of the message.
+   */
+  public void smqOnMsg(Msg msg)
+  {
+    Msg m = msg.detach();
+    while(_q.size() >= _capacity || ! _q.offer(m)) {
+      if(_q.poll() != null)
+        _overflow.incrementAndGet();
+    }
+  }
+
+  /** Remove and return the oldest message or null if the queue is
+      empty.
+   */
+  public Msg poll()
+  {
+    return _q.poll();
+  }
+
+  /** Returns the number of queued messages. */
+  public int size()
+  {
+    return _q.size();
+  }
+
+  /** Returns the number of messages dropped because the queue was
+      full.
+   */
+  public long getOverflow()
+  {
+    return _overflow.get();
+  }
+
+  private final RingQ<Msg> _q;
+  private final int _capacity; // The ring is rounded up to a power of 2
+  private final AtomicLong _overflow = new AtomicLong();
+};
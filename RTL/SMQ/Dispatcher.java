@@ -0,0 +1,150 @@
+package RTL.SMQ;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+   A Dispatcher runs the SMQ user callbacks in worker threads, thus
+   preventing slow callbacks from stalling the thread reading
+   messages from the broker. By default, SMQ runs all callbacks
+   inline, in the context of the downstream thread (or the {@link
+   EventLoop} thread). Install a dispatcher by calling {@link
+   SMQ#setDispatcher}.
+   <p>
+   Two dispatch strategies are provided:
+   <ul>
+   <li>{@link #pool}: a bounded worker pool, where any worker thread
+   may run any callback. Messages may be delivered out of order.</li>
+   <li>{@link #ordered}: a set of lanes, each running one worker
+   thread. All callbacks for a topic ID run in the same lane; thus
+   messages for one topic are delivered in order while messages for
+   different topics run in parallel.</li>
+   </ul>
+   <p>
+   The queues are bounded. The thread reading messages from the
+   broker waits when a queue is full, which throttles the broker
+   connection until the workers catch up. While waiting, the thread
+   processes no other frames, including acks and the broker's pings,
+   and one full lane therefore stalls all topics on the connection.
+   A callback must not wait for a message or an ack from the same SMQ
+   instance unless the queues are large enough to never fill up.
+   <p>
+   A Dispatcher can be shared by several SMQ instances. Callbacks
+   dispatched after the Dispatcher is closed are dropped.
+ */
+public class Dispatcher
+{
+  /** Create a worker pool.
+      @param threads the number of worker threads.
+      @param queueSize the maximum number of queued callbacks.
+   */
+  public static Dispatcher pool(int threads, int queueSize)
+  {
+    return pool(threads, queueSize, null);
+  }
+
+  /** Create a worker pool.
+      @param threads the number of worker threads.
+      @param queueSize the maximum number of queued callbacks.
+      @param threadFactory creates the worker threads. Daemon threads
+      are created if this parameter is null.
+   */
+  public static Dispatcher pool(int threads, int queueSize,
+                                ThreadFactory threadFactory)
+  {
+    return new Dispatcher(1, threads, queueSize, threadFactory);
+  }
+
+  /** Create a dispatcher delivering callbacks for each topic in order.
+      @param lanes the number of lanes, each running one worker thread.
+      @param queueSize the maximum number of queued callbacks per lane.
+   */
+  public static Dispatcher ordered(int lanes, int queueSize)
+  {
+    return ordered(lanes, queueSize, null);
+  }
+
+  /** Create a dispatcher delivering callbacks for each topic in order.
+      @param lanes the number of lanes, each running one worker thread.
+      @param queueSize the maximum number of queued callbacks per lane.
+      @param threadFactory creates the worker threads. Daemon threads
+      are created if this parameter is null.
+   */
+  public static Dispatcher ordered(int lanes, int queueSize,
+                                   ThreadFactory threadFactory)
+  {
+    return new Dispatcher(lanes, 1, queueSize, threadFactory);
+  }
+
+  private Dispatcher(int queues, int threadsPerQueue, int queueSize,
+                     ThreadFactory threadFactory)
+  {
+    if(queues < 1) queues=1;
+    if(threadsPerQueue < 1) threadsPerQueue=1;
+    if(queueSize < 1) queueSize=1;
+    _queues = new ArrayList<ArrayBlockingQueue<Runnable>>(queues);
+    for(int i=0 ; i < queues ; i++) {
+      final ArrayBlockingQueue<Runnable> q =
+        new ArrayBlockingQueue<Runnable>(queueSize);
+      _queues.add(q);
+      for(int j=0 ; j < threadsPerQueue ; j++) {
+        Runnable r = new Runnable() { public void run() {worker(q);} };
+        SMQ.newThread(threadFactory, r).start();
+      }
+    }
+  }
+
+  /** Stop the worker threads when all queued callbacks have run.
+      Callbacks dispatched after this call are dropped.
+   */
+  public void close()
+  {
+    _running=false;
+  }
+
+  // Queue the callback in the lane selected by key. Waits if full.
+  // Returns false if the callback was dropped since the dispatcher
+  // is closed.
+  final boolean execute(long key, Runnable r)
+  {
+    if( ! _running )
+      return false;
+    int n = _queues.size();
+    ArrayBlockingQueue<Runnable> q = _queues.get(n == 1 ? 0 :
+      (int)(((key * 0x9E3779B97F4A7C15L) >>> 33) % n));
+    boolean interrupted=false;
+    for(;;) {
+      try {
+        q.put(r);
+        break;
+      }
+      catch(InterruptedException e) { interrupted=true; }
+    }
+    if(interrupted)
+      Thread.currentThread().interrupt();
+    // Closed while queuing: the workers may have exited.
+    return _running || ! q.remove(r);
+  }
+
+  private final void worker(ArrayBlockingQueue<Runnable> q)
+  {
+    while(_running || ! q.isEmpty()) {
+      Runnable r;
+      try { r = q.poll(100, TimeUnit.MILLISECONDS); }
+      catch(InterruptedException e) { continue; }
+      if(r != null) {
+        try { r.run(); }
+        catch(RuntimeException e) {
+          Thread t = Thread.currentThread();
+          t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+      }
+    }
+  }
+
+  private final List<ArrayBlockingQueue<Runnable>> _queues;
+  private volatile boolean _running=true;
+};
@@ -0,0 +1,159 @@
+package RTL.SMQ;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+   An EventLoop runs one thread and one Selector that manages any
+   number of SMQ connections. SMQ instances created with an EventLoop
+   do not create the upstream and downstream threads; socket reads,
+   socket writes, and the user callbacks run in the context of the
+   event loop thread. A gateway managing many broker connections can
+   therefore create a few EventLoop instances and distribute the
+   connections among them.
+   <p>
+   Callbacks running in the event loop thread must not block since
+   a blocking callback stalls all connections managed by the loop.
+
+   @see SMQ#SMQ(EventLoop,URL,TrustManager[],HostnameVerifier,IntfOnClose)
+ */
+public class EventLoop
+{
+  /** Create the selector and start the event loop thread.
+   */
+  public EventLoop() throws IOException
+  {
+    this(null);
+  }
+
+  /** Create the selector and start the event loop thread.
+      @param threadFactory creates the event loop thread. A daemon
+      thread is created if this parameter is null.
+   */
+  public EventLoop(ThreadFactory threadFactory) throws IOException
+  {
+    _selector = Selector.open();
+    Runnable r = new Runnable() { public void run() {loop();} };
+    _thread = SMQ.newThread(threadFactory, r);
+    _thread.start();
+  }
+
+  /** Stop the event loop thread and close all connections managed
+      by the loop.
+   */
+  public void close()
+  {
+    _running=false;
+    _selector.wakeup();
+  }
+
+  interface Handler
+  {
+    void registered(SelectionKey key);
+    void ioReady(SelectionKey key);
+    void timer(long now);
+    void loopClosed();
+    // Called after ioReady, timer, or registered threw and the
+    // channel was closed by the loop.
+    void failed(SelectionKey key, RuntimeException e);
+  }
+
+  // Run task in the event loop thread.
+  final void execute(Runnable task)
+  {
+    _tasks.add(task);
+    if(Thread.currentThread() != _thread)
+      _selector.wakeup();
+  }
+
+  final boolean inLoop()
+  {
+    return Thread.currentThread() == _thread;
+  }
+
+  // Register the channel in the loop thread. The handler is called
+  // when the channel is ready and on each timer tick.
+  final void register(final SelectableChannel ch, final Handler h)
+  {
+    execute(new Runnable() {
+        public void run() {
+          SelectionKey key=null;
+          try { key = ch.register(_selector, SelectionKey.OP_READ, h); }
+          catch(ClosedChannelException ignore) {}
+          try { h.registered(key); }
+          catch(RuntimeException e) {
+            if(key == null) uncaught(e);
+            else failed(key, e);
+          }
+        }
+      });
+  }
+
+  private final void loop()
+  {
+    long timer = System.currentTimeMillis();
+    while(_running) {
+      try { _selector.select(TIMER_INTERVAL); }
+      catch(IOException e) { break; }
+      Runnable task;
+      while((task = _tasks.poll()) != null) {
+        try { task.run(); }
+        catch(RuntimeException e) { uncaught(e); }
+      }
+      Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+      while(iter.hasNext()) {
+        SelectionKey key = iter.next();
+        iter.remove();
+        if(key.isValid()) {
+          try { ((Handler)key.attachment()).ioReady(key); }
+          catch(RuntimeException e) { failed(key, e); }
+        }
+      }
+      long now = System.currentTimeMillis();
+      if(now - timer >= TIMER_INTERVAL) {
+        timer=now;
+        for(SelectionKey key : _selector.keys()) {
+          if(key.isValid()) {
+            try { ((Handler)key.attachment()).timer(now); }
+            catch(RuntimeException e) { failed(key, e); }
+          }
+        }
+      }
+    }
+    for(SelectionKey key : _selector.keys()) {
+      try { ((Handler)key.attachment()).loopClosed(); }
+      catch(RuntimeException e) { uncaught(e); }
+    }
+    try { _selector.close(); }
+    catch(IOException ignore) {}
+  }
+
+  // A handler threw: report the exception and close the connection.
+  // The other connections managed by the loop are not affected.
+  private final void failed(SelectionKey key, RuntimeException e)
+  {
+    uncaught(e);
+    key.cancel();
+    try { key.channel().close(); }
+    catch(IOException ignore) {}
+    try { ((Handler)key.attachment()).failed(key, e); }
+    catch(RuntimeException e2) { uncaught(e2); }
+  }
+
+  private static final void uncaught(RuntimeException e)
+  {
+    Thread t = Thread.currentThread();
+    t.getUncaughtExceptionHandler().uncaughtException(t, e);
+  }
+
+  private static final long TIMER_INTERVAL = 1000;
+
+  private final Selector _selector;
+  private final Thread _thread;
+  private volatile boolean _running=true;
+  private final ConcurrentLinkedQueue<Runnable> _tasks =
+    new ConcurrentLinkedQueue<Runnable>();
+};
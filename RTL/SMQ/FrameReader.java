@@ -0,0 +1,124 @@
+package RTL.SMQ;
+
+import java.io.*;
+
+/** Reads SMQ frames from the socket into a reusable receive buffer
+    and decodes the frame fields in place. The socket is read in
+    large chunks, thus a burst of small messages is typically decoded
+    from memory without calling the socket for each message. The
+    buffer is at least large enough for the largest possible frame
+    (64K).
+ */
+final class FrameReader
+{
+  FrameReader(InputStream is, int size)
+  {
+    _is=is;
+    buf = new byte[size < 0xFFFF ? 0xFFFF : size];
+  }
+
+  /** Read a complete frame into the receive buffer and return the
+      frame length. The read position is set to the message type.
+   */
+  final int readFrame() throws IOException
+  {
+    if(end >= lim)
+      end = lim = 0; // Buffer empty: read from start of buffer
+    pos=end;
+    fill(2);
+    int len = ((buf[pos] & 0xFF) << 8) | (buf[pos+1] & 0xFF);
+    if(len < 3)
+      throw new IOException("Invalid frame length");
+    fill(len);
+    end=pos+len;
+    pos += 2;
+    return len;
+  }
+
+  /** Read available data without blocking and return true if a
+      complete frame is buffered. The input stream must return zero
+      if no data is available. Used in EventLoop mode.
+   */
+  final boolean available() throws IOException
+  {
+    if(end >= lim)
+      end = lim = 0;
+    for(;;) {
+      int have = lim-end;
+      if(have >= 2) {
+        int len = ((buf[end] & 0xFF) << 8) | (buf[end+1] & 0xFF);
+        if(have >= len)
+          return true;
+        if(end+len > buf.length)
+          compact();
+      }
+      else if(end+2 > buf.length)
+        compact();
+      int n = _is.read(buf, lim, buf.length-lim);
+      if(n < 0)
+        throw new EOFException();
+      if(n == 0)
+        return false;
+      lim += n;
+    }
+  }
+
+  // Move the data following the current frame to start of buffer.
+  private final void compact()
+  {
+    lim -= end;
+    System.arraycopy(buf, end, buf, 0, lim);
+    end=0;
+  }
+
+  final int readUnsignedByte() throws IOException
+  {
+    check(1);
+    return buf[pos++] & 0xFF;
+  }
+
+  final long readUnsignedInt() throws IOException
+  {
+    check(4);
+    long i = ((buf[pos] & 0xFFL) << 24) | ((buf[pos+1] & 0xFF) << 16) |
+      ((buf[pos+2] & 0xFF) << 8) | (buf[pos+3] & 0xFF);
+    pos += 4;
+    return i;
+  }
+
+  final String readString(int len) throws IOException
+  {
+    check(len);
+    String s = new String(buf, pos, len, "UTF-8");
+    pos += len;
+    return s;
+  }
+
+  private final void check(int len) throws IOException
+  {
+    if(len < 0 || pos+len > end)
+      throw new IOException("Frame underflow");
+  }
+
+  // Make sure 'len' bytes starting at pos are in the buffer.
+  private final void fill(int len) throws IOException
+  {
+    if(pos+len > buf.length) { // Move partial frame to start of buffer
+      lim -= pos;
+      System.arraycopy(buf, pos, buf, 0, lim);
+      pos=0;
+    }
+    while(lim-pos < len) {
+      int n = _is.read(buf, lim, buf.length-lim);
+      if(n < 1)
+        throw new EOFException();
+      lim += n;
+    }
+  }
+
+  final byte[] buf; // Receive buffer
+  int pos; // Read position in buf
+  int end; // End of current frame
+  private int lim; // End of data read from the socket
+  private final InputStream _is;
+};
@@ -0,0 +1,141 @@
+package RTL.SMQ;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A histogram of durations in nanoseconds with a fixed memory
+    footprint. The buckets are log-linear, as in HdrHistogram: each
+    power of two is divided into 32 buckets, thus a percentile is
+    within 3% of the recorded value. Values up to about 36 minutes are
+    recorded; larger values are recorded as the largest value.
+    <p>
+    The histogram is thread safe and recording a value does not lock
+    or allocate.
+    @see Metrics
+ */
+public final class Histogram
+{
+  Histogram()
+  {
+  }
+
+  /** Record a value in nanoseconds. Negative values are ignored.
+   */
+  public void record(long ns)
+  {
+    if(ns < 0)
+      return;
+    _counts.incrementAndGet(index(ns));
+    _count.increment();
+    _sum.add(ns);
+    long max;
+    while(ns > (max=_max.get()) && ! _max.compareAndSet(max, ns));
+  }
+
+  /** Returns the number of recorded values. */
+  public long getCount()
+  {
+    return _count.sum();
+  }
+
+  /** Returns the largest recorded value or zero. */
+  public long getMax()
+  {
+    return _max.get();
+  }
+
+  /** Returns the mean value or zero. */
+  public long getMean()
+  {
+    long n = _count.sum();
+    return n == 0 ? 0 : _sum.sum() / n;
+  }
+
+  /** Returns the value at the percentile or zero if no values were
+      recorded.
+      @param p the percentile, e.g. 99.9.
+   */
+  public long percentile(double p)
+  {
+    long n=0;
+    long[] c = new long[SIZE];
+    for(int i=0 ; i < SIZE ; i++)
+      n += c[i] = _counts.get(i);
+    if(n == 0)
+      return 0;
+    long rank = Math.max(1, (long)Math.ceil(n * p / 100.0));
+    long sum=0;
+    for(int i=0 ; i < SIZE ; i++) {
+      sum += c[i];
+      if(sum >= rank)
+        return Math.min(value(i), _max.get());
+    }
+    return _max.get();
+  }
+
+  /** Returns count, mean, p50, p90, p99, p99.9, and max, in that
+      order.
+   */
+  public Map<String,Long> summary()
+  {
+    Map<String,Long> m = new LinkedHashMap<String,Long>();
+    m.put("count", getCount());
+    m.put("mean", getMean());
+    m.put("p50", percentile(50));
+    m.put("p90", percentile(90));
+    m.put("p99", percentile(99));
+    m.put("p99.9", percentile(99.9));
+    m.put("max", getMax());
+    return m;
+  }
+
+  /** Remove the recorded values. Values recorded concurrently may be
+      lost.
+   */
+  public void reset()
+  {
+    for(int i=0 ; i < SIZE ; i++)
+      _counts.set(i, 0);
+    _count.reset();
+    _sum.reset();
+    _max.set(0);
+  }
+
+  public String toString()
+  {
+    return summary().toString();
+  }
+
+  private static final int index(long v)
+  {
+    if(v < SUB)
+      return (int)v;
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    if(exp > MAX_EXP)
+      return SIZE-1;
+    return (exp - SUB_BITS + 1) * SUB + (int)((v >> (exp-SUB_BITS)) & (SUB-1));
+  }
+
+  // The middle of bucket ix.
+  private static final long value(int ix)
+  {
+    if(ix < SUB)
+      return ix;
+    int shift = ix/SUB - 1;
+    long low = (long)(SUB + ix%SUB) << shift;
+    return low + ((1L << shift) >> 1);
+  }
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_EXP = 40; // 2^41 ns, about 36 minutes
+  private static final int SIZE = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+  private final AtomicLongArray _counts = new AtomicLongArray(SIZE);
+  private final LongAdder _count = new LongAdder();
+  private final LongAdder _sum = new LongAdder();
+  private final AtomicLong _max = new AtomicLong();
+};
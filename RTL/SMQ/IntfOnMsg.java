@@ -5,7 +5,9 @@ package RTL.SMQ;
 public interface IntfOnMsg
 {
   /** Called each time a new message arrives.
-      @param msg the SMQ message received.
+      @param msg the SMQ message received. The message is a view
+      into the receive buffer and is only valid until the method
+      returns; see {@link Msg}.
   */
   public void smqOnMsg(Msg msg);
 };
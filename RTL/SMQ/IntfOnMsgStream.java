@@ -0,0 +1,21 @@
+package RTL.SMQ;
+
+/** Callback interface for receiving messages from the broker as
+    streams. A subscriber using this interface can parse or forward a
+    large message incrementally, without buffering the complete
+    message.
+    @see SMQ#subscribeStream
+ */
+public interface IntfOnMsgStream
+{
+  /** Called each time a new message arrives. A message sent as one
+      frame is delivered like a message passed to {@link
+      IntfOnMsg#smqOnMsg}. A fragmented message is delivered in one of
+      the subscription's delivery threads, which are reused for the
+      following messages; the stream then provides the
+      fragments as they arrive and the method may block while reading
+      the stream. Data not read when the method returns is discarded.
+      @param stream the message data.
+  */
+  public void smqOnMsgStream(MsgStream stream);
+};
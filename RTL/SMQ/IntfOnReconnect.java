@@ -0,0 +1,19 @@
+package RTL.SMQ;
+
+/** Callback interface for the automatic reconnect.
+    @see SMQ#setReconnect
+ */
+public interface IntfOnReconnect
+{
+  /** Called when the connection is lost and the stack starts
+      reconnecting.
+      @param e the reason for the disconnect.
+   */
+  public void smqOnDisconnect(SmqException e);
+
+  /** Called when the connection is re-established and the
+      subscriptions, observers, and topic names are being restored.
+      @param attempts the number of connection attempts.
+   */
+  public void smqOnReconnect(int attempts);
+};
@@ -0,0 +1,139 @@
+package RTL.SMQ;
+
+/** Open addressing hash map with primitive long keys. Lookups do not
+    box the key and a lookup is typically one probe into two flat
+    arrays. Null values are not supported. The map is not thread
+    safe, but a map that is no longer modified can be read by any
+    number of threads; see {@link #copy}.
+ */
+final class LongMap<V>
+{
+  LongMap()
+  {
+    this(16);
+  }
+
+  @SuppressWarnings("unchecked")
+  LongMap(int capacity)
+  {
+    int cap=8;
+    while(cap < capacity*2)
+      cap <<= 1;
+    _keys = new long[cap];
+    _vals = (V[])new Object[cap];
+    _shift = 64 - Long.numberOfTrailingZeros(cap);
+  }
+
+  final V get(long key)
+  {
+    int mask = _keys.length-1;
+    for(int ix = hash(key) ; ; ix = (ix+1) & mask) {
+      V v = _vals[ix];
+      if(v == null || _keys[ix] == key)
+        return v;
+    }
+  }
+
+  final V put(long key, V val)
+  {
+    int mask = _keys.length-1;
+    int ix = hash(key);
+    for( ; _vals[ix] != null ; ix = (ix+1) & mask) {
+      if(_keys[ix] == key) {
+        V old = _vals[ix];
+        _vals[ix] = val;
+        return old;
+      }
+    }
+    _keys[ix] = key;
+    _vals[ix] = val;
+    if(++_size * 2 > _keys.length)
+      rehash(_keys.length*2);
+    return null;
+  }
+
+  final V remove(long key)
+  {
+    int mask = _keys.length-1;
+    int ix = hash(key);
+    for( ; _vals[ix] != null ; ix = (ix+1) & mask) {
+      if(_keys[ix] == key) {
+        V old = _vals[ix];
+        _size--;
+        // Backward shift deletion: move following entries into the gap.
+        for(int next = (ix+1) & mask ; _vals[next] != null ;
+            next = (next+1) & mask) {
+          int home = hash(_keys[next]);
+          if(((next - home) & mask) >= ((next - ix) & mask)) {
+            _keys[ix] = _keys[next];
+            _vals[ix] = _vals[next];
+            ix = next;
+          }
+        }
+        _vals[ix] = null;
+        return old;
+      }
+    }
+    return null;
+  }
+
+  /** Returns a copy of the map. Used for copy-on-write: modify the
+      copy and publish it using a volatile reference.
+   */
+  final LongMap<V> copy()
+  {
+    LongMap<V> m = new LongMap<V>(0);
+    m._keys = _keys.clone();
+    m._vals = _vals.clone();
+    m._shift = _shift;
+    m._size = _size;
+    return m;
+  }
+
+  final int size()
+  {
+    return _size;
+  }
+
+  final void clear()
+  {
+    java.util.Arrays.fill(_vals, null);
+    _size=0;
+  }
+
+  /** Returns all keys, used when iterating the map. */
+  final long[] keys()
+  {
+    long[] keys = new long[_size];
+    int n=0;
+    for(int i=0 ; i < _vals.length ; i++) {
+      if(_vals[i] != null)
+        keys[n++] = _keys[i];
+    }
+    return keys;
+  }
+
+  private final int hash(long key)
+  {
+    return (int)((key * 0x9E3779B97F4A7C15L) >>> _shift);
+  }
+
+  private final void rehash(int cap)
+  {
+    long[] keys = _keys;
+    V[] vals = _vals;
+    LongMap<V> m = new LongMap<V>(cap/2);
+    for(int i=0 ; i < vals.length ; i++) {
+      if(vals[i] != null)
+        m.put(keys[i], vals[i]);
+    }
+    _keys = m._keys;
+    _vals = m._vals;
+    _shift = m._shift;
+  }
+
+  private long[] _keys;
+  private V[] _vals; // Null: empty slot
+  private int _shift;
+  private int _size=0;
+};
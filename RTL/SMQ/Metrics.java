@@ -0,0 +1,407 @@
+package RTL.SMQ;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** The counters, histograms, and rates of one SMQ instance and its
+    broker connection. The counters are always enabled. The counters
+    and histograms are striped (LongAdder), thus the threads updating
+    them, e.g. the threads writing to and reading from the socket, do
+    not contend.
+    <p>
+    The TLS handshakes are always measured. The other histograms and
+    the topic rates are disabled by default:
+    <ul>
+    <li>{@link #setTiming}: the publish latency, the time from publish
+    until the frame is written to the socket, sampled with one
+    publish timed at a time; the ack round trip time for create,
+    createsub, and subscribe; and the time spent in the
+    IntfOnMsg callbacks.
+    <li>{@link #setTopicRates}: the number of messages per second sent
+    and received, per topic ID. The rates are computed when read, over
+    the time since the previous read or the topic's first message,
+    with a minimum of one second.
+    The rates are cleared when the connection closes since the broker
+    may assign new topic IDs.
+    </ul>
+    Use {@link MetricsJmx} to export the metrics as a JMX MBean.
+    <pre>
+    Metrics m = smq.getMetrics();
+    m.setTiming(true);
+    ...
+    long p99 = m.publishLatency().percentile(99);
+    </pre>
+    @see SMQ#getMetrics
+ */
+public final class Metrics implements MetricsMXBean
+{
+  Metrics(SMQ smq)
+  {
+    _smq=smq;
+  }
+
+  /** Returns the number of frames written to the socket, including
+      control messages. */
+  public long getFramesSent()
+  {
+    return _framesSent.sum();
+  }
+
+  /** Returns the number of bytes written to the socket. */
+  public long getBytesSent()
+  {
+    return _bytesSent.sum();
+  }
+
+  /** Returns the number of socket writes. The ratio of frames to
+      writes shows the upstream batching. */
+  public long getWrites()
+  {
+    return _writes.sum();
+  }
+
+  /** Returns the number of published messages written to the socket;
+      a fragmented message is one message. */
+  public long getMessagesSent()
+  {
+    return _msgsSent.sum();
+  }
+
+  public long getFramesReceived()
+  {
+    return _framesRec.sum();
+  }
+
+  public long getBytesReceived()
+  {
+    return _bytesRec.sum();
+  }
+
+  /** Returns the number of messages delivered to the callbacks. */
+  public long getMessagesReceived()
+  {
+    return _msgsRec.sum();
+  }
+
+  /** Returns the number of received messages without a subscriber
+      or dropped by a closed {@link Dispatcher}.
+      @see SMQ#setDeadLetter
+   */
+  public long getMessagesUndeliverable()
+  {
+    return _undeliverable.sum();
+  }
+
+  /** Returns the number of fragmented messages that were dropped
+      since they exceeded the reassembly limits or since the last
+      fragment was not received.
+      @see SMQ#setReassembly
+   */
+  public long getFragmentedDropped()
+  {
+    return _fragDropped.sum();
+  }
+
+  /** Returns the number of messages published using a topic or
+      subtopic name that were dropped since the broker rejected the
+      name or the message could not be queued.
+   */
+  public long getPublishFailed()
+  {
+    return _pubFailed.sum();
+  }
+
+  /** Returns the number of elements in the upstream queue. */
+  public long getUpstreamQueueDepth()
+  {
+    return _smq.upstreamQueueDepth();
+  }
+
+  /** @see SMQ#getUpstreamQueued */
+  public long getUpstreamQueuedBytes()
+  {
+    return _smq.getUpstreamQueued();
+  }
+
+  /** @see SMQ#getUpstreamDropped */
+  public long getUpstreamDropped()
+  {
+    return _smq.getUpstreamDropped();
+  }
+
+  /** @see SMQ#getUpstreamRejected */
+  public long getUpstreamRejected()
+  {
+    return _smq.getUpstreamRejected();
+  }
+
+  /** @see SMQ#getOutboxSize */
+  public long getOutboxSize()
+  {
+    return _smq.getOutboxSize();
+  }
+
+  /** Returns the publish to socket write latency. */
+  public Histogram publishLatency()
+  {
+    return _pubLatency;
+  }
+
+  /** Returns the create, createsub, and subscribe round trip time. */
+  public Histogram ackRtt()
+  {
+    return _ackRtt;
+  }
+
+  /** Returns the time spent in the IntfOnMsg callbacks. */
+  public Histogram callbackTime()
+  {
+    return _callbackTime;
+  }
+
+  /** Returns the TLS handshake time. The handshakes are always
+      measured. In the thread mode, the time includes the TCP connect.
+   */
+  public Histogram handshakeTime()
+  {
+    return _handshakeTime;
+  }
+
+  /** Returns the number of TLS handshakes. */
+  public long getHandshakes()
+  {
+    return _handshakes.sum();
+  }
+
+  /** Returns the number of TLS handshakes resuming a session, thus
+      avoiding the certificate validation and, for TLS 1.2, the key
+      exchange.
+      @see SMQ#setSSLContext
+   */
+  public long getResumedHandshakes()
+  {
+    return _resumed.sum();
+  }
+
+  public Map<String,Long> getHandshakeTime()
+  {
+    return _handshakeTime.summary();
+  }
+
+  public Map<String,Long> getPublishLatency()
+  {
+    return _pubLatency.summary();
+  }
+
+  public Map<String,Long> getAckRtt()
+  {
+    return _ackRtt.summary();
+  }
+
+  public Map<String,Long> getCallbackTime()
+  {
+    return _callbackTime.summary();
+  }
+
+  /** Returns the messages per second sent, by topic name. Topic IDs
+      not known to the client, e.g. ephemeral topic IDs, are returned
+      as numbers.
+   */
+  public Map<String,Double> getTopicSendRates()
+  {
+    return rates(_sendM);
+  }
+
+  /** Returns the messages per second received, by topic name.
+      @see #getTopicSendRates
+   */
+  public Map<String,Double> getTopicReceiveRates()
+  {
+    return rates(_recM);
+  }
+
+  public boolean isTiming()
+  {
+    return _timing;
+  }
+
+  /** Enable or disable the histograms. */
+  public void setTiming(boolean enable)
+  {
+    _timing=enable;
+  }
+
+  public boolean isTopicRates()
+  {
+    return _topicRates;
+  }
+
+  /** Enable or disable the topic rates. */
+  public void setTopicRates(boolean enable)
+  {
+    _topicRates=enable;
+    if( ! enable )
+      clearTopics();
+  }
+
+  /** Set the counters to zero and clear the histograms and the topic
+      rates. The upstream queue and outbox values are not changed.
+      Values counted concurrently may be lost.
+   */
+  public void reset()
+  {
+    _framesSent.reset();
+    _bytesSent.reset();
+    _writes.reset();
+    _msgsSent.reset();
+    _framesRec.reset();
+    _bytesRec.reset();
+    _msgsRec.reset();
+    _undeliverable.reset();
+    _fragDropped.reset();
+    _pubFailed.reset();
+    _handshakes.reset();
+    _resumed.reset();
+    _handshakeTime.reset();
+    _pubLatency.reset();
+    _ackRtt.reset();
+    _callbackTime.reset();
+    clearTopics();
+  }
+
+  // Called by SMQ.
+
+  final void frameSent()
+  {
+    _framesSent.increment();
+  }
+
+  final void messageSent(long tid)
+  {
+    _msgsSent.increment();
+    if(_topicRates)
+      count(true, tid);
+  }
+
+  final void written(int len)
+  {
+    _writes.increment();
+    _bytesSent.add(len);
+  }
+
+  final void frameReceived(int len)
+  {
+    _framesRec.increment();
+    _bytesRec.add(len);
+  }
+
+  final void messageReceived(long tid)
+  {
+    _msgsRec.increment();
+    if(_topicRates)
+      count(false, tid);
+  }
+
+  final void undeliverable()
+  {
+    _undeliverable.increment();
+  }
+
+  final void fragmentedDropped()
+  {
+    _fragDropped.increment();
+  }
+
+  final void publishFailed()
+  {
+    _pubFailed.increment();
+  }
+
+  final void handshake(long ns, boolean resumed)
+  {
+    _handshakes.increment();
+    if(resumed)
+      _resumed.increment();
+    _handshakeTime.record(ns);
+  }
+
+  final void clearTopics()
+  {
+    synchronized(this) {
+      _sendM = new LongMap<Rate>();
+      _recM = new LongMap<Rate>();
+    }
+  }
+
+  private final void count(boolean send, long tid)
+  {
+    Rate r = (send ? _sendM : _recM).get(tid); // Immutable snapshot
+    if(r == null) {
+      synchronized(this) {
+        LongMap<Rate> m = send ? _sendM : _recM;
+        r = m.get(tid);
+        if(r == null) {
+          m = m.copy();
+          m.put(tid, r = new Rate());
+          if(send) _sendM = m; else _recM = m;
+        }
+      }
+    }
+    r.count.increment();
+  }
+
+  private final Map<String,Double> rates(LongMap<Rate> m)
+  {
+    Map<String,Double> rm = new TreeMap<String,Double>();
+    long now = System.nanoTime();
+    for(long tid : m.keys()) {
+      String name = _smq.tid2topic(tid);
+      rm.put(name == null ? Long.toString(tid) : name, m.get(tid).rate(now));
+    }
+    return rm;
+  }
+
+  // The messages counted for one topic ID.
+  private static final class Rate
+  {
+    final synchronized double rate(long now)
+    {
+      if(now - lastTime >= 1000000000L) {
+        long n = count.sum();
+        rate = (n - lastCount) * 1e9 / (now - lastTime);
+        lastCount=n;
+        lastTime=now;
+      }
+      return rate;
+    }
+
+    final LongAdder count = new LongAdder();
+    private long lastCount;
+    private long lastTime = System.nanoTime();
+    private double rate;
+  };
+
+  final Histogram _pubLatency = new Histogram();
+  final Histogram _ackRtt = new Histogram();
+  final Histogram _callbackTime = new Histogram();
+  private final Histogram _handshakeTime = new Histogram();
+  volatile boolean _timing=false;
+
+  private final SMQ _smq;
+  private final LongAdder _framesSent = new LongAdder();
+  private final LongAdder _bytesSent = new LongAdder();
+  private final LongAdder _writes = new LongAdder();
+  private final LongAdder _msgsSent = new LongAdder();
+  private final LongAdder _framesRec = new LongAdder();
+  private final LongAdder _bytesRec = new LongAdder();
+  private final LongAdder _msgsRec = new LongAdder();
+  private final LongAdder _undeliverable = new LongAdder();
+  private final LongAdder _fragDropped = new LongAdder();
+  private final LongAdder _pubFailed = new LongAdder();
+  private final LongAdder _handshakes = new LongAdder();
+  private final LongAdder _resumed = new LongAdder();
+  private volatile boolean _topicRates=false;
+  private volatile LongMap<Rate> _sendM = new LongMap<Rate>();
+  private volatile LongMap<Rate> _recM = new LongMap<Rate>();
+};
@@ -0,0 +1,65 @@
+package RTL.SMQ;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Registers the {@link Metrics} of an SMQ instance with the platform
+    MBean server. The MBean is named RTL.SMQ:type=SMQ,name=<i>name</i>
+    and can be viewed using e.g. JConsole or VisualVM. The JMX code is
+    kept out of the SMQ and Metrics classes since javax.management is
+    not available on Android.
+    <pre>
+    MetricsJmx.register(smq, "telemetry");
+    ...
+    MetricsJmx.unregister("telemetry");
+    </pre>
+ */
+public final class MetricsJmx
+{
+  private MetricsJmx() {}
+
+  /** Register the instance's metrics.
+      @param name the name, unique in the JVM.
+      @throws SmqException INVALID_ARG if the name is invalid or is
+      in use.
+   */
+  public static ObjectName register(SMQ smq, String name)
+    throws SmqException
+  {
+    try {
+      ObjectName on = objectName(name);
+      server().registerMBean(smq.getMetrics(), on);
+      return on;
+    }
+    catch(JMException e) {
+      throw new SmqException(SmqException.INVALID_ARG, e);
+    }
+  }
+
+  /** Unregister the metrics registered using the name. Does nothing
+      if the name is not registered.
+   */
+  public static void unregister(String name)
+  {
+    try {
+      ObjectName on = objectName(name);
+      MBeanServer s = server();
+      if(s.isRegistered(on))
+        s.unregisterMBean(on);
+    }
+    catch(JMException ignore) {}
+  }
+
+  private static final ObjectName objectName(String name)
+    throws JMException
+  {
+    return new ObjectName("RTL.SMQ:type=SMQ,name=" + ObjectName.quote(name));
+  }
+
+  private static final MBeanServer server()
+  {
+    return ManagementFactory.getPlatformMBeanServer();
+  }
+};
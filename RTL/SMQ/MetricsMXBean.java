@@ -0,0 +1,40 @@
+package RTL.SMQ;
+
+import java.util.Map;
+
+/** The management interface of {@link Metrics}. The histograms are
+    returned as summaries in nanoseconds and the topic rates in
+    messages per second.
+    @see MetricsJmx
+ */
+public interface MetricsMXBean
+{
+  public long getFramesSent();
+  public long getBytesSent();
+  public long getWrites();
+  public long getMessagesSent();
+  public long getFramesReceived();
+  public long getBytesReceived();
+  public long getMessagesReceived();
+  public long getMessagesUndeliverable();
+  public long getFragmentedDropped();
+  public long getPublishFailed();
+  public long getUpstreamQueueDepth();
+  public long getUpstreamQueuedBytes();
+  public long getUpstreamDropped();
+  public long getUpstreamRejected();
+  public long getOutboxSize();
+  public long getHandshakes();
+  public long getResumedHandshakes();
+  public Map<String,Long> getHandshakeTime();
+  public Map<String,Long> getPublishLatency();
+  public Map<String,Long> getAckRtt();
+  public Map<String,Long> getCallbackTime();
+  public Map<String,Double> getTopicSendRates();
+  public Map<String,Double> getTopicReceiveRates();
+  public boolean isTiming();
+  public void setTiming(boolean enable);
+  public boolean isTopicRates();
+  public void setTopicRates(boolean enable);
+  public void reset();
+};
@@ -1,33 +1,112 @@
 package RTL.SMQ;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /** Messages received from the broker are encapsulated in Msg instances.
+    <p>
+    The SMQ stack decodes received messages in place and the Msg
+    instance passed to {@link IntfOnMsg#smqOnMsg} is a view into the
+    stack's receive buffer. The view is valid until the callback
+    returns. Call {@link #getData} if the data must be kept after the
+    callback returns. Messages delivered by {@link SwingSMQ}, {@link
+    AndroidSMQ}, and other classes running the callbacks in another
+    thread are copies and are not limited to the callback's duration.
+    <p>
+    Messages larger than the maximum frame size are sent as fragments
+    and are by default reassembled before being delivered. When
+    fragment delivery is enabled, see {@link SMQ#setFragmentDelivery},
+    each fragment is delivered as it arrives and the fragment
+    information is provided by {@link #isFragment}, {@link
+    #isLastFragment}, and {@link #getFragmentOffset}.
  */
 public class Msg
 {
   Msg(long ptid, long tid, long subtid, byte[] data)
+  {
+    set(ptid, tid, subtid, data, 0, data == null ? 0 : data.length);
+    _data=data;
+    _owned=true;
+  }
+
+  Msg()
+  {
+  }
+
+  // Set the view, used by the SMQ stack when reusing the instance.
+  final void set(long ptid, long tid, long subtid,
+                 byte[] buf, int off, int len)
   {
     _ptid=ptid;
     _tid=tid;
     _subtid=subtid;
-    _data=data;
+    _buf=buf;
+    _off=off;
+    _len=len;
+    _data=null;
+    _detached=null;
+    _frag=0;
+    _fragOffset=0;
+  }
+
+  // Set the fragment information, used with fragment delivery.
+  final void setFragment(boolean last, long offset)
+  {
+    _frag = last ? LAST_FRAGMENT : FRAGMENT;
+    _fragOffset=offset;
+  }
+
+  // Returns an instance that owns its data and that can be used
+  // after the callback returns.
+  final Msg detach()
+  {
+    if(_owned)
+      return this;
+    if(_detached == null) {
+      _detached = new Msg(_ptid, _tid, _subtid, getData());
+      _detached._frag=_frag;
+      _detached._fragOffset=_fragOffset;
+    }
+    return _detached;
   }
 
-  /** Returns the raw data sent by the broker.
+  /** Returns the raw data sent by the broker or null if the message
+      has no data. The data is copied from the receive buffer the
+      first time the method is called.
    */
   public final byte[] getData()
   {
+    if(_data == null && _len > 0) {
+      _data = new byte[_len];
+      System.arraycopy(_buf, _off, _data, 0, _len);
+    }
     return _data;
   }
 
+  /** Returns a read only view of the raw data sent by the broker.
+      The method does not copy the data.
+   */
+  public final ByteBuffer getBuffer()
+  {
+    if(_buf == null)
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    return ByteBuffer.wrap(_buf, _off, _len).slice().asReadOnlyBuffer();
+  }
+
+  /** Returns the length of the raw data sent by the broker.
+   */
+  public final int getLength()
+  {
+    return _len;
+  }
+
   /** Attempt to convert the data from raw UTF-8 to a Java string.
       @return the converted string or null if the data cannot be converted.
      @see SMQ#publish(String topic, String msg)
    */
   public final String toString()
   {
-    try { return new String(_data, "UTF-8"); }
+    try { return _len == 0 ? "" : new String(_buf, _off, _len, "UTF-8"); }
     catch(UnsupportedEncodingException ignore) { }
     return null;
   }
@@ -54,8 +133,43 @@ public class Msg
     return _subtid;
   }
 
+  /** Returns true if the instance holds one fragment of a larger
+      message. Fragments are delivered only if fragment delivery is
+      enabled.
+   */
+  public final boolean isFragment()
+  {
+    return _frag != 0;
+  }
+
+  /** Returns true if the instance holds the last fragment of a
+      fragmented message.
+   */
+  public final boolean isLastFragment()
+  {
+    return _frag == LAST_FRAGMENT;
+  }
+
+  /** Returns the position of the fragment's data in the complete
+      message or zero if the instance is not a fragment.
+   */
+  public final long getFragmentOffset()
+  {
+    return _fragOffset;
+  }
+
+  private static final byte FRAGMENT = 1;
+  private static final byte LAST_FRAGMENT = 2;
+
   private long _ptid; // Publisher's ephemeral topic ID.
   private long _tid;
   private long _subtid;
-  private byte[] _data;
+  private byte[] _buf; // View: _buf[_off, _off+_len]
+  private int _off;
+  private int _len;
+  private byte[] _data; // Copy of the view, created by getData
+  private boolean _owned; // True if _buf is not the receive buffer
+  private Msg _detached;
+  private byte _frag; // 0, FRAGMENT, or LAST_FRAGMENT
+  private long _fragOffset;
 };
@@ -0,0 +1,177 @@
+package RTL.SMQ;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** The data of a message delivered to {@link IntfOnMsgStream}. The
+    stream is an InputStream and a ReadableByteChannel. For a
+    fragmented message, the stream holds a bounded queue of received
+    fragments; the thread reading from the broker waits when the
+    queue is full, thus a slow consumer throttles the broker
+    connection instead of buffering the message.
+ */
+public class MsgStream extends InputStream implements ReadableByteChannel
+{
+  // A message sent as one frame.
+  MsgStream(Msg msg)
+  {
+    _ptid=msg.getPTid();
+    _tid=msg.getTid();
+    _subtid=msg.getSubTid();
+    _cur=msg.getBuffer();
+    _fragQ=null;
+    _eof=true;
+  }
+
+  // A fragmented message, the fragments are added by calling add.
+  MsgStream(long ptid, long tid, long subtid, int queueSize)
+  {
+    _ptid=ptid;
+    _tid=tid;
+    _subtid=subtid;
+    _cur=ByteBuffer.allocate(0);
+    _fragQ = new ArrayBlockingQueue<byte[]>(queueSize);
+  }
+
+  /** Returns the publisher's ephemeral topic ID, i.e. the sender's address.
+   */
+  public final long getPTid()
+  {
+    return _ptid;
+  }
+
+  /** Returns the topic ID for which this message was published to.
+   */
+  public final long getTid()
+  {
+    return _tid;
+  }
+
+  /** Returns the subtopic ID for which this message was published to
+      or zero if subtopic was not set by the publisher.
+   */
+  public final long getSubTid()
+  {
+    return _subtid;
+  }
+
+  public int read() throws IOException
+  {
+    if( ! next() )
+      return -1;
+    return _cur.get() & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if(len == 0)
+      return 0;
+    if( ! next() )
+      return -1;
+    int n = Math.min(len, _cur.remaining());
+    _cur.get(b, off, n);
+    return n;
+  }
+
+  public int read(ByteBuffer dst) throws IOException
+  {
+    if( ! dst.hasRemaining() )
+      return 0;
+    if( ! next() )
+      return -1;
+    int n = Math.min(dst.remaining(), _cur.remaining());
+    int lim = _cur.limit();
+    _cur.limit(_cur.position() + n);
+    dst.put(_cur);
+    _cur.limit(lim);
+    return n;
+  }
+
+  public int available()
+  {
+    return _cur.remaining();
+  }
+
+  public boolean isOpen()
+  {
+    return ! _closed;
+  }
+
+  /** Close the stream. Fragments not yet received are discarded.
+   */
+  public void close()
+  {
+    _closed=true;
+    if(_fragQ != null)
+      _fragQ.clear(); // Release a waiting reader thread
+  }
+
+  // Called by the thread reading from the broker. The data must be
+  // a copy. Waits if the queue is full.
+  final void add(byte[] data)
+  {
+    while( ! _closed ) {
+      try {
+        if(_fragQ.offer(data, 100, TimeUnit.MILLISECONDS))
+          return;
+      }
+      catch(InterruptedException e) {}
+    }
+  }
+
+  // Called by the thread reading from the broker when the last
+  // fragment is added.
+  final void end()
+  {
+    add(EOF);
+  }
+
+  // Called when the connection closes. Does not wait.
+  final void abort()
+  {
+    _aborted=true;
+  }
+
+  private final boolean next() throws IOException
+  {
+    while( ! _cur.hasRemaining() ) {
+      if(_closed)
+        throw new ClosedChannelException();
+      if(_eof)
+        return false;
+      byte[] b;
+      try { b = _fragQ.poll(100, TimeUnit.MILLISECONDS); }
+      catch(InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      if(b == null) {
+        if(_aborted && _fragQ.isEmpty()) {
+          _eof=true;
+          throw new IOException("Connection closed");
+        }
+      }
+      else if(b == EOF)
+        _eof=true;
+      else
+        _cur = ByteBuffer.wrap(b);
+    }
+    return true;
+  }
+
+  private static final byte[] EOF = new byte[0];
+
+  private final long _ptid;
+  private final long _tid;
+  private final long _subtid;
+  private final ArrayBlockingQueue<byte[]> _fragQ; // Null: one frame
+  private ByteBuffer _cur; // Data being read
+  private boolean _eof=false;
+  private volatile boolean _closed=false;
+  private volatile boolean _aborted=false;
+};
@@ -0,0 +1,382 @@
+package RTL.SMQ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/** A journal of published messages that have not been written to the
+    broker connection. The journal is a sequence of memory mapped
+    segment files in a directory. A segment starts with an 8 byte
+    header, a magic number and the read position, followed by the
+    records. A record is the record length (4 bytes), the topic name,
+    the subtopic name, and the encoded PUBLISH or PUBFRAG frame. The
+    names are stored since topic IDs may change when the client
+    reconnects. A zero length terminates the records in a segment.
+    <p>
+    Records are read by the sender in order using {@link #next}, and
+    are committed, using {@link #commit}, when written to the socket.
+    The committed read position is stored in the segment header and
+    a segment is deleted when all of its records are committed. A
+    journal left by a previous run is continued, thus messages not
+    sent when the application exits are sent by the next run.
+    <p>
+    The journal is written to the memory mapped file and the operating
+    system writes the data to disk; the journal survives an
+    application crash, but data written just prior to a power failure
+    may be lost. The methods are synchronized.
+ */
+final class Outbox
+{
+  // A record returned by next.
+  static final class Rec
+  {
+    String topic;
+    String subtopic; // Null: no subtopic
+    byte[] frame;
+    int epoch; // The rewind count when read
+    private Segment seg;
+    private int end; // Position following the record
+  };
+
+  private static final class Segment
+  {
+    long seq;
+    File file;
+    MappedByteBuffer buf;
+    int readPos; // Committed
+    int writePos;
+  };
+
+  /**
+     @param dir the directory for the segment files, created if needed.
+     @param maxSize the maximum size of the records not committed.
+     @param segmentSize the size of a segment file.
+     @param durable true: all published messages are journaled.
+   */
+  Outbox(File dir, long maxSize, int segmentSize, boolean durable)
+    throws IOException
+  {
+    _dir=dir;
+    _maxSize=maxSize;
+    _segSize = segmentSize < MIN_SEGMENT ? MIN_SEGMENT : segmentSize;
+    _durable=durable;
+    if( ! dir.isDirectory() && ! dir.mkdirs() )
+      throw new IOException("Cannot create "+dir);
+    ArrayList<Long> seqs = new ArrayList<Long>();
+    File[] files = dir.listFiles();
+    if(files != null) {
+      for(File f : files) {
+        String n = f.getName();
+        if(n.startsWith(PREFIX) && n.endsWith(SUFFIX)) {
+          try {
+            seqs.add(Long.parseLong(
+              n.substring(PREFIX.length(), n.length()-SUFFIX.length())));
+          }
+          catch(NumberFormatException e) {}
+        }
+      }
+    }
+    Collections.sort(seqs);
+    for(long seq : seqs) {
+      Segment s = open(seq, false);
+      if(s != null)
+        _segs.add(s);
+      _nextSeq = seq+1;
+    }
+    trim();
+  }
+
+  final boolean isDurable()
+  {
+    return _durable;
+  }
+
+  /** Returns true if all records are committed. */
+  final synchronized boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  /** Returns the size of the records not committed. */
+  final synchronized long size()
+  {
+    long size=0;
+    for(Segment s : _segs)
+      size += s.writePos - s.readPos;
+    return size;
+  }
+
+  final synchronized long getDropped()
+  {
+    return _dropped;
+  }
+
+  /** Append the frames of one message. The frames are copied and are
+      either all appended or, if the journal is full, none.
+      @return false if the journal is full or closed.
+   */
+  final synchronized boolean append(String topic, String subtopic,
+                                    byte[][] frames)
+  {
+    byte[] t = utf8(topic);
+    byte[] st = utf8(subtopic);
+    int names = 4 + t.length + st.length;
+    long size=0;
+    for(byte[] f : frames)
+      size += 4 + names + frameLen(f);
+    if(_closed || t.length > 0xFFFF || st.length > 0xFFFF ||
+       size() + size > _maxSize) {
+      _dropped++;
+      return false;
+    }
+    Segment tail = _segs.isEmpty() ? null : _segs.get(_segs.size()-1);
+    int tailPos = tail == null ? 0 : tail.writePos;
+    int nsegs = _segs.size();
+    try {
+      for(byte[] f : frames) {
+        int len = frameLen(f);
+        int rs = 4 + names + len;
+        Segment s = _segs.isEmpty() ? null : _segs.get(_segs.size()-1);
+        if(s == null || s.writePos + rs + 4 > s.buf.capacity()) {
+          s = open(_nextSeq++, true);
+          _segs.add(s);
+        }
+        MappedByteBuffer b = s.buf;
+        int pos = s.writePos;
+        b.putInt(pos+rs, 0);
+        b.position(pos+4);
+        b.putShort((short)t.length);
+        b.put(t);
+        b.putShort((short)st.length);
+        b.put(st);
+        b.put(f, 0, len);
+        b.putInt(pos, rs-4); // Written last: the record is complete
+        s.writePos = pos+rs;
+      }
+    }
+    catch(IOException e) { // Cannot create segment: undo
+      while(_segs.size() > nsegs)
+        delete(_segs.remove(_segs.size()-1));
+      if(tail != null) {
+        tail.buf.putInt(tailPos, 0);
+        tail.writePos = tailPos;
+      }
+      _dropped++;
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns true if next returns a record. */
+  final synchronized boolean hasNext()
+  {
+    return sendSeg() != null;
+  }
+
+  /** Returns the next record not sent since the last rewind or null.
+      Returns null if the journal was rewound after the sender read
+      the epoch.
+   */
+  final synchronized Rec next(int epoch)
+  {
+    Segment s = epoch == _epoch ? sendSeg() : null;
+    if(s == null)
+      return null;
+    MappedByteBuffer b = s.buf;
+    int n = b.getInt(_sendPos);
+    b.position(_sendPos+4);
+    Rec r = new Rec();
+    r.topic = string(b);
+    r.subtopic = string(b);
+    r.frame = new byte[_sendPos + 4 + n - b.position()];
+    b.get(r.frame);
+    r.epoch=_epoch;
+    r.seg=s;
+    r.end = _sendPos = _sendPos + 4 + n;
+    return r;
+  }
+
+  /** Commit the records up to and including r: the records are
+      written to the socket.
+   */
+  final synchronized void commit(Rec r)
+  {
+    if(_closed)
+      return;
+    while( ! _segs.isEmpty() ) {
+      Segment s = _segs.get(0);
+      if(s.seq < r.seg.seq) {
+        _segs.remove(0);
+        delete(s);
+        continue;
+      }
+      if(s == r.seg && r.end > s.readPos) {
+        s.readPos = r.end;
+        s.buf.putInt(4, r.end);
+      }
+      break;
+    }
+    trim();
+  }
+
+  /** Set the send position to the first record not committed. Used
+      when the connection closes: the records sent, but not committed,
+      are sent again.
+   */
+  final synchronized void rewind()
+  {
+    _epoch++;
+    _sendSeq=0;
+    _sendPos=0;
+  }
+
+  final synchronized int epoch()
+  {
+    return _epoch;
+  }
+
+  /** Write the mapped segments to disk. The journal can no longer be
+      used.
+   */
+  final synchronized void close()
+  {
+    if(_closed)
+      return;
+    _closed=true;
+    for(Segment s : _segs)
+      s.buf.force();
+  }
+
+  // Returns the segment holding the record at the send position, if
+  // any. Moves the send position to the next segment and past the
+  // committed records.
+  private final Segment sendSeg()
+  {
+    if(_closed || _segs.isEmpty())
+      return null;
+    Segment head = _segs.get(0);
+    if(_sendSeq < head.seq ||
+       (_sendSeq == head.seq && _sendPos < head.readPos)) {
+      _sendSeq = head.seq;
+      _sendPos = head.readPos;
+    }
+    for(Segment s : _segs) {
+      if(s.seq < _sendSeq)
+        continue;
+      if(s.seq > _sendSeq) {
+        _sendSeq = s.seq;
+        _sendPos = HDR_SIZE;
+      }
+      if(_sendPos < s.writePos)
+        return s;
+    }
+    return null;
+  }
+
+  // Delete the committed segments, except for the last (the tail).
+  private final void trim()
+  {
+    while(_segs.size() > 1) {
+      Segment s = _segs.get(0);
+      if(s.readPos != s.writePos)
+        break;
+      _segs.remove(0);
+      delete(s);
+    }
+  }
+
+  // Map a segment file. Returns null if not a segment.
+  private final Segment open(long seq, boolean create) throws IOException
+  {
+    File f = new File(_dir, PREFIX + seq + SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      if(create)
+        raf.setLength(_segSize);
+      long len = raf.length();
+      if(len < HDR_SIZE+4 || len > Integer.MAX_VALUE)
+        return null;
+      // The mapping is valid after the file is closed.
+      MappedByteBuffer b =
+        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+      if(create) {
+        b.putInt(0, MAGIC);
+        b.putInt(4, HDR_SIZE);
+        b.putInt(HDR_SIZE, 0);
+      }
+      else if(b.getInt(0) != MAGIC)
+        return null;
+      Segment s = new Segment();
+      s.seq=seq;
+      s.file=f;
+      s.buf=b;
+      int pos=HDR_SIZE;
+      for(;;) { // Find the end: the records are self delimiting
+        int n = pos+4 > b.capacity() ? 0 : b.getInt(pos);
+        if(n <= 0 || pos + 4L + n + 4 > b.capacity())
+          break;
+        pos += 4+n;
+      }
+      s.writePos=pos;
+      int rp = b.getInt(4);
+      s.readPos = rp < HDR_SIZE || rp > pos ? HDR_SIZE : rp;
+      return s;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  private static final void delete(Segment s)
+  {
+    // Fails on some platforms while mapped; retried by the next run.
+    s.file.delete();
+  }
+
+  private static final int frameLen(byte[] f)
+  {
+    return ((f[0] & 0xFF) << 8) | (f[1] & 0xFF);
+  }
+
+  private static final byte[] utf8(String s)
+  {
+    if(s == null)
+      return EMPTY;
+    try { return s.getBytes("UTF-8"); }
+    catch(UnsupportedEncodingException e) { return EMPTY; }
+  }
+
+  private static final String string(MappedByteBuffer b)
+  {
+    byte[] s = new byte[b.getShort() & 0xFFFF];
+    b.get(s);
+    if(s.length == 0)
+      return null;
+    try { return new String(s, "UTF-8"); }
+    catch(UnsupportedEncodingException e) { return null; }
+  }
+
+  private static final String PREFIX = "outbox-";
+  private static final String SUFFIX = ".seg";
+  private static final int MAGIC = 0x534d514f; // "SMQO"
+  private static final int HDR_SIZE = 8;
+  private static final int MIN_SEGMENT = 0x100000;
+  private static final byte[] EMPTY = new byte[0];
+
+  private final File _dir;
+  private final long _maxSize;
+  private final int _segSize;
+  private final boolean _durable;
+  private final ArrayList<Segment> _segs = new ArrayList<Segment>();
+  private long _nextSeq=1;
+  private long _sendSeq=0; // Send position: segment and offset
+  private int _sendPos=0;
+  private int _epoch=0;
+  private long _dropped=0;
+  private boolean _closed=false;
+};
@@ -0,0 +1,122 @@
+package RTL.SMQ;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/** A PublishStream publishes one message whose data is written
+    incrementally. The data is framed into MSG_PUBFRAG frames as it
+    is written and the message is completed by calling {@link #close},
+    which sends the last fragment as a MSG_PUBLISH frame. The
+    subscribers receive one message, which is reassembled by the
+    receiving SMQ stack, or the fragments if fragment delivery is
+    enabled; see {@link SMQ#setFragmentDelivery}.
+    <p>
+    The stream buffers at most one frame (64K) and the write methods
+    wait when the upstream queue holds more than a few frames. A
+    file or a large document can therefore be published using
+    constant memory.
+    <p>
+    The receivers identify the fragments by the sender's ephemeral
+    topic ID and the topic ID. Do not publish other messages to the
+    same topic ID, using this SMQ instance, until the stream is
+    closed.
+    <p>
+    A PublishStream is not thread safe.
+    @see SMQ#openPublishStream
+ */
+public final class PublishStream extends OutputStream
+  implements WritableByteChannel
+{
+  PublishStream(SMQ smq, long tid, long subtid)
+  {
+    _smq=smq;
+    _tid=tid;
+    _subtid=subtid;
+  }
+
+  public void write(int b) throws IOException
+  {
+    if(_frame == null || _len == SMQ.MAX_PAYLOAD)
+      next();
+    _frame[HDR_SIZE + _len++] = (byte)b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    while(len > 0) {
+      if(_frame == null || _len == SMQ.MAX_PAYLOAD)
+        next();
+      int n = Math.min(len, SMQ.MAX_PAYLOAD - _len);
+      System.arraycopy(b, off, _frame, HDR_SIZE + _len, n);
+      _len += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  public int write(ByteBuffer src) throws IOException
+  {
+    int total = src.remaining();
+    while(src.hasRemaining()) {
+      if(_frame == null || _len == SMQ.MAX_PAYLOAD)
+        next();
+      int n = Math.min(src.remaining(), SMQ.MAX_PAYLOAD - _len);
+      src.get(_frame, HDR_SIZE + _len, n);
+      _len += n;
+    }
+    return total;
+  }
+
+  /** Send the buffered data as a fragment.
+   */
+  public void flush() throws IOException
+  {
+    if(_len > 0)
+      next();
+  }
+
+  public boolean isOpen()
+  {
+    return ! _closed;
+  }
+
+  /** Send the buffered data and complete the message.
+   */
+  public void close() throws IOException
+  {
+    if(_closed)
+      return;
+    _closed=true;
+    if(_frame == null)
+      _frame = _smq.allocFrame();
+    byte[] frame = _frame;
+    _frame=null;
+    _smq.sendStreamFrame(frame, _len, true, _tid, _subtid);
+  }
+
+  // Send the current frame as a fragment, if any, and allocate a new.
+  private final void next() throws IOException
+  {
+    if(_closed)
+      throw new ClosedChannelException();
+    if(_frame != null) {
+      byte[] frame = _frame;
+      _frame=null;
+      _smq.sendStreamFrame(frame, _len, false, _tid, _subtid);
+    }
+    _frame = _smq.allocFrame();
+    _len=0;
+  }
+
+  private static final int HDR_SIZE = 15;
+
+  private final SMQ _smq;
+  private final long _tid;
+  private final long _subtid;
+  private byte[] _frame; // Pooled frame buffer, payload at HDR_SIZE
+  private int _len=0; // Payload length
+  private boolean _closed=false;
+};
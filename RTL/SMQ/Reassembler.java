@@ -0,0 +1,165 @@
+package RTL.SMQ;
+
+/** Tracks fragmented messages received from the broker. A message
+    larger than the maximum frame size is sent as a sequence of
+    MSG_PUBFRAG frames followed by a MSG_PUBLISH frame holding the
+    last fragment. A sequence is identified by the publisher's
+    ephemeral topic ID and the topic ID.
+    <p>
+    The memory used for buffering is bounded: a sequence is dropped
+    when the message exceeds the maximum message size. When the total
+    size of all buffered sequences would exceed the maximum total
+    size, the buffers of the least recently active sequences are
+    released, and the new fragment's sequence is dropped if this is
+    not sufficient. A dropped sequence is kept until its last fragment
+    arrives so the remaining fragments are discarded.
+    <p>
+    A sequence that does not receive a fragment for IDLE_TIMEOUT,
+    e.g. since the publisher disconnected in the middle of the
+    message, is removed when a new sequence is started. The dropped
+    and removed sequences are counted by {@link
+    Metrics#getFragmentedDropped}. The class is used by the thread
+    reading from the broker and is not thread safe.
+ */
+final class Reassembler
+{
+  // A fragment sequence.
+  static final class Seq
+  {
+    long subtid;
+    long offset; // Number of payload bytes received
+    byte[] buf;
+    boolean buffered; // False: fragments are delivered as they arrive
+    boolean dropped;
+    long time; // When the last fragment was received
+  };
+
+  Reassembler(int maxMsgSize, int maxTotalSize, Metrics metrics)
+  {
+    _maxMsgSize=maxMsgSize;
+    _maxTotalSize=maxTotalSize;
+    _metrics=metrics;
+  }
+
+  static final long key(long ptid, long tid)
+  {
+    return (ptid << 32) | tid;
+  }
+
+  final boolean isEmpty()
+  {
+    return _seqM.size() == 0;
+  }
+
+  final Seq get(long key)
+  {
+    return _seqM.get(key);
+  }
+
+  /** Add a fragment to the sequence, creating the sequence if
+      needed. The fragments are copied if buffer is true when the
+      sequence is created.
+      @return the sequence.
+   */
+  final Seq add(long key, long subtid,
+                byte[] b, int off, int len, boolean buffer)
+  {
+    long now = System.nanoTime();
+    Seq s = _seqM.get(key);
+    if(s == null) {
+      if(_seqM.size() != 0 && now - _lastSweep >= IDLE_TIMEOUT/2)
+        removeIdle(now);
+      s = new Seq();
+      s.subtid=subtid;
+      s.buffered=buffer;
+      _seqM.put(key, s);
+    }
+    s.time=now;
+    if(s.buffered && ! s.dropped) {
+      if(s.offset + len > _maxMsgSize) {
+        drop(s);
+      }
+      else {
+        int size = (int)s.offset + len;
+        if(s.buf == null || s.buf.length < size) {
+          int cap = s.buf == null ? 0x10000 : s.buf.length*2;
+          while(cap < size) cap *= 2;
+          if(cap > _maxMsgSize) cap = _maxMsgSize;
+          int grow = cap - (s.buf == null ? 0 : s.buf.length);
+          while(_totalSize + grow > _maxTotalSize && dropOldest(s));
+          if(_totalSize + grow > _maxTotalSize) {
+            drop(s);
+            s.offset += len;
+            return s;
+          }
+          byte[] nb = new byte[cap];
+          if(s.buf != null)
+            System.arraycopy(s.buf, 0, nb, 0, (int)s.offset);
+          s.buf=nb;
+          _totalSize += grow;
+        }
+        System.arraycopy(b, off, s.buf, (int)s.offset, len);
+      }
+    }
+    s.offset += len;
+    return s;
+  }
+
+  /** Remove the sequence and release its buffer.
+   */
+  final Seq remove(long key)
+  {
+    Seq s = _seqM.remove(key);
+    if(s != null && s.buf != null)
+      _totalSize -= s.buf.length;
+    return s;
+  }
+
+  private final void drop(Seq s)
+  {
+    if(s.buf != null)
+      _totalSize -= s.buf.length;
+    s.buf=null;
+    s.dropped=true;
+    _metrics.fragmentedDropped();
+  }
+
+  // Drop the least recently active buffering sequence, other than
+  // the current sequence. Returns false if there is none.
+  private final boolean dropOldest(Seq current)
+  {
+    Seq oldest=null;
+    for(long key : _seqM.keys()) {
+      Seq s = _seqM.get(key);
+      if(s != current && s.buf != null &&
+         (oldest == null || s.time - oldest.time < 0))
+        oldest=s;
+    }
+    if(oldest == null)
+      return false;
+    drop(oldest);
+    return true;
+  }
+
+  private final void removeIdle(long now)
+  {
+    _lastSweep=now;
+    for(long key : _seqM.keys()) {
+      Seq s = _seqM.get(key);
+      if(now - s.time >= IDLE_TIMEOUT) {
+        remove(key);
+        if( ! s.dropped )
+          _metrics.fragmentedDropped();
+      }
+    }
+  }
+
+  static final long IDLE_TIMEOUT = 60000000000L; // 60 seconds
+
+  private final int _maxMsgSize;
+  private final int _maxTotalSize;
+  private final Metrics _metrics;
+  private int _totalSize=0;
+  private long _lastSweep = System.nanoTime();
+  private final LongMap<Seq> _seqM = new LongMap<Seq>();
+};
@@ -0,0 +1,61 @@
+package RTL.SMQ;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Runs the reconnect attempts for an SMQ instance in a separate
+    thread. The delay between attempts grows exponentially from the
+    minimum to the maximum delay, and each delay is randomized
+    ("equal jitter": between half and all of the delay) so that a
+    large number of clients do not reconnect in lockstep after a
+    broker restart.
+ */
+final class Reconnector implements Runnable
+{
+  Reconnector(SMQ smq, long minDelay, long maxDelay, int maxAttempts)
+  {
+    _smq=smq;
+    _minDelay = minDelay < 1 ? 1 : minDelay;
+    _maxDelay = maxDelay < _minDelay ? _minDelay : maxDelay;
+    _maxAttempts=maxAttempts;
+  }
+
+  // Start the reconnect thread unless already running.
+  final void start(ThreadFactory threadFactory)
+  {
+    if( ! _running.compareAndSet(false, true) )
+      return;
+    SMQ.newThread(threadFactory, this).start();
+  }
+
+  public void run()
+  {
+    try {
+      for(int attempt=1 ; ; attempt++) {
+        try { Thread.sleep(delay(attempt)); }
+        catch(InterruptedException e) {}
+        boolean last = _maxAttempts > 0 && attempt >= _maxAttempts;
+        if(_smq.reconnectAttempt(attempt, last))
+          break;
+      }
+    }
+    finally {
+      _running.set(false);
+    }
+  }
+
+  final long delay(int attempt)
+  {
+    long d = _minDelay << Math.min(attempt-1, 30);
+    if(d > _maxDelay || d <= 0)
+      d = _maxDelay;
+    return d/2 + ThreadLocalRandom.current().nextLong(d/2 + 1);
+  }
+
+  private final SMQ _smq;
+  private final long _minDelay;
+  private final long _maxDelay;
+  private final int _maxAttempts; // Zero: no limit
+  private final AtomicBoolean _running = new AtomicBoolean();
+};
@@ -0,0 +1,127 @@
+package RTL.SMQ;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Bounded lock-free queue based on Dmitry Vyukov's array queue. Any
+    number of threads may call offer and poll. The SMQ stack uses the
+    queue as a multi-producer/single-consumer queue, where the
+    application threads produce and the upstream thread consumes.
+ */
+final class RingQ<E>
+{
+  RingQ(int capacity)
+  {
+    int cap=2;
+    while(cap < capacity)
+      cap <<= 1;
+    _mask=cap-1;
+    _elems = new AtomicReferenceArray<E>(cap);
+    _seq = new AtomicLongArray(cap);
+    for(int i=0 ; i < cap ; i++)
+      _seq.set(i,i);
+  }
+
+  /** Returns false if the queue is full.
+   */
+  final boolean offer(E e)
+  {
+    for(;;) {
+      long pos = _tail.get();
+      int ix = (int)pos & _mask;
+      long dif = _seq.get(ix) - pos;
+      if(dif == 0) {
+        if(_tail.compareAndSet(pos, pos+1)) {
+          _elems.lazySet(ix, e);
+          _seq.lazySet(ix, pos+1); // Publish element
+          return true;
+        }
+      }
+      else if(dif < 0)
+        return false; // Full
+    }
+  }
+
+  /** Returns null if the queue is empty.
+   */
+  final E poll()
+  {
+    for(;;) {
+      long pos = _head.get();
+      int ix = (int)pos & _mask;
+      long dif = _seq.get(ix) - (pos+1);
+      if(dif == 0) {
+        if(_head.compareAndSet(pos, pos+1)) {
+          E e = _elems.get(ix);
+          _elems.lazySet(ix, null);
+          _seq.lazySet(ix, pos+_mask+1); // Release slot
+          return e;
+        }
+      }
+      else if(dif < 0)
+        return null; // Empty
+    }
+  }
+
+  /** Returns the head element without removing it or null if the
+      queue is empty.
+   */
+  final E peek()
+  {
+    long pos = _head.get();
+    int ix = (int)pos & _mask;
+    return _seq.get(ix) == pos+1 ? _elems.get(ix) : null;
+  }
+
+  /** Removes the head element if it is e.
+      @return false if the head element is not e.
+   */
+  final boolean pollIf(E e)
+  {
+    for(;;) {
+      long pos = _head.get();
+      int ix = (int)pos & _mask;
+      long dif = _seq.get(ix) - (pos+1);
+      if(dif == 0) {
+        if(_elems.get(ix) != e)
+          return false;
+        if(_head.compareAndSet(pos, pos+1)) {
+          _elems.lazySet(ix, null);
+          _seq.lazySet(ix, pos+_mask+1); // Release slot
+          return true;
+        }
+      }
+      else if(dif < 0)
+        return false; // Empty
+    }
+  }
+
+  final boolean isEmpty()
+  {
+    return _head.get() >= _tail.get();
+  }
+
+  /** Approximate number of queued elements. */
+  final int size()
+  {
+    long n = _tail.get() - _head.get();
+    return n < 0 ? 0 : (int)n;
+  }
+
+  final int capacity()
+  {
+    return _mask+1;
+  }
+
+  final void clear()
+  {
+    while(poll() != null);
+  }
+
+  private final int _mask;
+  private final AtomicReferenceArray<E> _elems;
+  private final AtomicLongArray _seq;
+  private final AtomicLong _head = new AtomicLong();
+  private final AtomicLong _tail = new AtomicLong();
+};
@@ -5,6 +5,17 @@ import java.net.*;
 import java.io.*;
 import javax.net.ssl.*;
 import java.security.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
    The Simple Message Queue (SMQ) Java client provides a similar high
@@ -15,8 +26,11 @@ import java.security.*;
    not connected to a broker.
    <p>
    Each SMQ instance creates two threads, where one thread is used for
-   upstream data and the other thread is used for downstream data. All
-   user callbacks run in the context of the downstream thread. The
+   upstream data and the other thread is used for downstream data. The
+   threads can optionally be created by a ThreadFactory, such as
+   {@link SMQ#virtualThreadFactory}. All
+   user callbacks run in the context of the downstream thread, unless
+   a {@link Dispatcher} is installed. The
    callback action should be delegated in non thread safe UI code such
    as Swing and Android. See the utility classes {@link SwingSMQ} and
    {@link AndroidSMQ} for more information.
@@ -24,12 +38,19 @@ import java.security.*;
 
    The SMQ instance will not garbage collect unless method
    {@link SMQ#close} is called, which terminates the two threads.
+   <p>
+   Applications managing many broker connections can instead create
+   SMQ instances using an {@link EventLoop}. Such instances do not
+   create any threads and all user callbacks run in the context of
+   the event loop thread.
    
 <p>
    All methods sending messages to the broker (such as publish) return
    immediately and before the message is sent to the broker. The
-   message being sent is queued internally and sent one at a time by
-   the upstream thread running in the background.
+   message being sent is queued internally and sent by the upstream
+   thread running in the background. The upstream thread combines
+   queued messages into larger writes; see {@link
+   SMQ#setUpstreamBatch}.
 
    @see <a href="https://realtimelogic.com/ba/doc/?url=SMQ.html">
    SMQ Overview</a>
@@ -67,6 +88,25 @@ public class SMQ
    */
   public SMQ(URL smqUrl, TrustManager[] trustMgr,
              HostnameVerifier hostVerifier, Proxy proxy, IntfOnClose onClose)
+  {
+    this(smqUrl, trustMgr, hostVerifier, proxy, onClose, null);
+  }
+
+  /**
+     Create an SMQ client instance, where the upstream and downstream
+     threads are created by the provided thread factory. Use {@link
+     SMQ#virtualThreadFactory} to run the two threads as virtual
+     threads, thus enabling an application to create a large number
+     of SMQ instances without exhausting the OS threads.
+
+     @param threadFactory creates the upstream and downstream
+     threads. Standard threads are created if this parameter is null.
+
+     @see SMQ#SMQ(URL,TrustManager[],HostnameVerifier,Proxy,IntfOnClose)
+   */
+  public SMQ(URL smqUrl, TrustManager[] trustMgr,
+             HostnameVerifier hostVerifier, Proxy proxy, IntfOnClose onClose,
+             ThreadFactory threadFactory)
   {
     _smqUrl=smqUrl;
     _proxy = proxy;
@@ -74,12 +114,78 @@ public class SMQ
     _hostVerifier=hostVerifier;
     _onClose = onClose;
     _lock=this;
-    _upstreamThread = new Thread() { public void run() {upstreamThreadFunc();} };
-    _downstreamThread = new Thread() { public void run() {downstreamThreadFunc();} };
+    _loop=null;
+    _threadFactory=threadFactory;
+    Runnable up = new Runnable() { public void run() {upstreamThreadFunc();} };
+    Runnable down = new Runnable() { public void run() {downstreamThreadFunc();} };
+    if(threadFactory == null) {
+      _upstreamThread = new Thread(up);
+      _downstreamThread = new Thread(down);
+    }
+    else {
+      _upstreamThread = threadFactory.newThread(up);
+      _downstreamThread = threadFactory.newThread(down);
+    }
     _upstreamThread.start();
     _downstreamThread.start();
   }
 
+  /**
+     Create an SMQ client instance managed by an event loop. The
+     instance uses a non blocking socket and does not create the
+     upstream and downstream threads. Methods {@link SMQ#init} and
+     {@link SMQ#connect} block the calling thread until the
+     connection is established, and the event loop then manages the
+     connection. All user callbacks run in the context of the event
+     loop thread. Connecting via a proxy is not supported.
+
+     @param loop the event loop managing the connection. One event
+     loop can manage any number of SMQ instances.
+
+     @see SMQ#SMQ(URL,TrustManager[],HostnameVerifier,Proxy,IntfOnClose)
+   */
+  public SMQ(EventLoop loop, URL smqUrl, TrustManager[] trustMgr,
+             HostnameVerifier hostVerifier, IntfOnClose onClose)
+  {
+    _smqUrl=smqUrl;
+    _proxy = null;
+    _trustMgr=trustMgr;
+    _hostVerifier=hostVerifier;
+    _onClose = onClose;
+    _lock=this;
+    _loop=loop;
+    _threadFactory=null;
+  }
+
+
+  /**
+     Returns a ThreadFactory that creates virtual threads or null if
+     the Java runtime does not support virtual threads. Virtual
+     threads require Java 21 or later.
+     @see SMQ#SMQ(URL,TrustManager[],HostnameVerifier,Proxy,IntfOnClose,ThreadFactory)
+   */
+  public static ThreadFactory virtualThreadFactory()
+  {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory)Class.forName("java.lang.Thread$Builder")
+        .getMethod("factory").invoke(builder);
+    }
+    catch(Exception e) {}
+    return null;
+  }
+
+  // Create a thread using the factory, or a daemon thread if the
+  // factory is null. Used for the helper threads; the thread is not
+  // started.
+  static final Thread newThread(ThreadFactory threadFactory, Runnable r)
+  {
+    if(threadFactory != null)
+      return threadFactory.newThread(r);
+    Thread t = new Thread(r);
+    t.setDaemon(true);
+    return t;
+  }
 
   /**
      Returns the random number provided by the broker. The method can be
@@ -114,46 +220,173 @@ public class SMQ
     _recTimeStamp = System.currentTimeMillis();
     _isRunning = false;
     if(_conState != 0)
-      doEx(SmqException.INVALID_STATE);
-    SSLContext sc=null;
-    try { 
-      sc = SSLContext.getInstance("SSL");
-      sc.init(null,_trustMgr,null);
-    }
-    catch(NoSuchAlgorithmException e) { doEx(SmqException.SSL_NOT_SUPPORTED,e); }
-    catch (KeyManagementException e) { doEx(SmqException.SSL_NOT_SUPPORTED,e); }
-    SSLSocketFactoryWrapper factory =
-      new SSLSocketFactoryWrapper(sc.getSocketFactory());
-    HttpsURLConnection con=null;
+      invalidState();
+    SSLContext sc = getSSLContext();
+    if(_loop != null)
+      initNio(sc);
+    else {
+      SSLSocketFactoryWrapper factory =
+        new SSLSocketFactoryWrapper(sc.getSocketFactory(), _metrics);
+      HttpsURLConnection con=null;
+      int status=0;
+      try {
+        con = (HttpsURLConnection)
+          (_proxy == null ?
+           _smqUrl.openConnection() :
+           _smqUrl.openConnection(_proxy));
+        con.setUseCaches(false);
+        con.setDoInput(true);
+        con.setDoOutput(true);
+        con.setSSLSocketFactory(factory);
+        if(_hostVerifier != null)
+          con.setHostnameVerifier(_hostVerifier);
+        con.setRequestProperty("SimpleMQ", "true");
+        con.setRequestProperty("SendSmqHttpResponse", "true");
+        status=con.getResponseCode();
+      }
+      catch(IOException e) { doEx(SmqException.CANNOT_CONNECT,e); }
+      if(con.getHeaderField("SmqBroker") == null)
+        doEx(SmqException.URL_NOT_A_BROKER);
+      if(status != 200)
+        doEx(SmqException.NON_200_RESPONSE_CODE);
+      _sock = factory.getSocket();
+      try { _sock.setTcpNoDelay(true); }
+      catch(SocketException e) {}
+      try { _rd = new FrameReader(_sock.getInputStream(), _rbufSize); }
+      catch(IOException e) { doEx(SmqException.CANNOT_CONNECT,e); }
+    }
+    _reasm = new Reassembler(_maxMsgSize, _maxFragTotal, _metrics);
+    if(MSG_INIT != dispatchDownstreamMsg())
+      doEx(SmqException.PROTOCOL_ERROR);
+    _conState = 1;
+  }
+
+  /**
+     Set the SSLContext used for the TLS connections, e.g. a context
+     with a client certificate (KeyManager). The TrustManager set
+     passed to the constructor is then not used.
+     <p>
+     By default, the SMQ instances created with the same TrustManager
+     set (the same array), or with none, share one SSLContext. The
+     context's session cache lets a reconnect, or another instance
+     connecting to the same broker, resume the TLS session, which
+     avoids the certificate validation and, for TLS 1.2, the key
+     exchange. Share a context explicitly by passing the context
+     returned by {@link #getSSLContext} to the other instances. The
+     method must be called prior to calling {@link SMQ#init} or
+     {@link SMQ#connect}.
+
+     @param ctx an initialized SSLContext or null for the shared
+     context.
+     @see Metrics#getResumedHandshakes
+   */
+  public void setSSLContext(SSLContext ctx)
+  {
+    _sslCtx = ctx;
+  }
+
+  /** Returns the SSLContext used for the TLS connections. The shared
+      context is created if needed.
+      @see #setSSLContext
+   */
+  public SSLContext getSSLContext() throws SmqException
+  {
+    SSLContext sc = _sslCtx;
+    if(sc == null) {
+      synchronized(_sslCtxM) {
+        sc = _sslCtxM.get(_trustMgr);
+        if(sc == null) {
+          try { 
+            sc = SSLContext.getInstance("TLS");
+            sc.init(null,_trustMgr,null);
+          }
+          catch(NoSuchAlgorithmException e) { doEx(SmqException.SSL_NOT_SUPPORTED,e); }
+          catch (KeyManagementException e) { doEx(SmqException.SSL_NOT_SUPPORTED,e); }
+          _sslCtxM.put(_trustMgr, sc);
+        }
+      }
+      _sslCtx = sc;
+    }
+    return sc;
+  }
+
+  // Connect using the SSLEngine based transport and upgrade the
+  // HTTPS connection. Used when the instance is managed by an EventLoop.
+  private final void initNio(SSLContext sc) throws SmqException
+  {
+    String host = _smqUrl.getHost();
+    int port = _smqUrl.getPort() == -1 ?
+      _smqUrl.getDefaultPort() : _smqUrl.getPort();
     int status=0;
+    boolean isBroker=false;
     try {
-      con = (HttpsURLConnection)
-        (_proxy == null ?
-         _smqUrl.openConnection() :
-         _smqUrl.openConnection(_proxy));
-      con.setUseCaches(false);
-      con.setDoInput(true);
-      con.setDoOutput(true);
-      con.setSSLSocketFactory(factory);
-      if(_hostVerifier != null)
-        con.setHostnameVerifier(_hostVerifier);
-      con.setRequestProperty("SimpleMQ", "true");
-      con.setRequestProperty("SendSmqHttpResponse", "true");
-      status=con.getResponseCode();
+      SSLEngine eng = sc.createSSLEngine(host, port);
+      eng.setUseClientMode(true);
+      if(_hostVerifier == null) {
+        SSLParameters p = eng.getSSLParameters();
+        p.setEndpointIdentificationAlgorithm("HTTPS");
+        eng.setSSLParameters(p);
+      }
+      SocketChannel sch = SocketChannel.open();
+      SslChannel ch = new SslChannel(sch, eng);
+      _ch = ch; // Closed by sockClose on error
+      sch.connect(new InetSocketAddress(host, port));
+      sch.socket().setTcpNoDelay(true);
+      long start = System.nanoTime();
+      long startMs = System.currentTimeMillis();
+      ch.handshake();
+      _metrics.handshake(System.nanoTime() - start,
+                         ch.session().getCreationTime() < startMs);
+      if(_hostVerifier != null && ! _hostVerifier.verify(host, ch.session()))
+        throw new SSLPeerUnverifiedException(host);
+      String path = _smqUrl.getFile();
+      byte[] req = ("GET " + (path.length() == 0 ? "/" : path) +
+                    " HTTP/1.1\r\nHost: " + host +
+                    (port == _smqUrl.getDefaultPort() ? "" : ":"+port) +
+                    "\r\nSimpleMQ: true\r\nSendSmqHttpResponse: true\r\n\r\n")
+        .getBytes("UTF-8");
+      ch.write(req, 0, req.length);
+      InputStream in = ch.getInputStream();
+      String[] statusLine = readHttpLine(in).split(" ");
+      try { status = Integer.parseInt(statusLine[1]); }
+      catch(RuntimeException e) {}
+      long contentLen=0;
+      String line;
+      while((line=readHttpLine(in)).length() != 0) {
+        int ix = line.indexOf(':');
+        String name = ix < 0 ? line : line.substring(0, ix).trim();
+        if(name.equalsIgnoreCase("SmqBroker"))
+          isBroker=true;
+        else if(name.equalsIgnoreCase("Content-Length")) {
+          try { contentLen = Long.parseLong(line.substring(ix+1).trim()); }
+          catch(NumberFormatException e) {}
+        }
+      }
+      while(contentLen-- > 0 && in.read() >= 0);
+      _rd = new FrameReader(in, _rbufSize);
     }
     catch(IOException e) { doEx(SmqException.CANNOT_CONNECT,e); }
-    if(con.getHeaderField("SmqBroker") == null)
+    if( ! isBroker )
       doEx(SmqException.URL_NOT_A_BROKER);
     if(status != 200)
       doEx(SmqException.NON_200_RESPONSE_CODE);
-    _sock = factory.getSocket();
-    try { _sock.setTcpNoDelay(true); }
-    catch(SocketException e) {}
-    try { _is = new DataInputStream(_sock.getInputStream()); }
-    catch(IOException e) { doEx(SmqException.CANNOT_CONNECT,e); }
-    if(MSG_INIT != dispatchDownstreamMsg())
-      doEx(SmqException.PROTOCOL_ERROR);
-    _conState = 1;
+  }
+
+  private static final String readHttpLine(InputStream in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    for(;;) {
+      int c = in.read();
+      if(c < 0)
+        throw new EOFException();
+      if(c == '\n')
+        break;
+      if(c != '\r')
+        sb.append((char)c);
+      if(sb.length() > 8192)
+        throw new IOException("HTTP header too long");
+    }
+    return sb.toString();
   }
 
   /**
@@ -178,15 +411,18 @@ public class SMQ
     if(_conState == 0)
       init();
     else if(_conState != 1)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     try {
       OutMsg msg = new OutMsg(MSG_CONNECT);
-      msg.dos.writeByte(_version);
-      msg.dos.writeByte(uid.length);
-      msg.dos.write(uid);
+      msg.writeByte(_version);
+      msg.writeByte(uid.length);
+      msg.write(uid, 0, uid.length);
       msg.writeString(credentials, true);
       msg.writeString(info, false);
-      msg.send(_sock);
+      msg.send();
+      _uid=uid;
+      _credentials=credentials;
+      _info=info;
     }
     catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
     if(MSG_CONNACK != dispatchDownstreamMsg())
@@ -195,7 +431,15 @@ public class SMQ
     _isRunning = true;
     _topic2tidM.put("self",_etid);
     _tid2topicM.put(_etid,"self");
-    synchronized(_downstreamThread) { _downstreamThread.notify(); }
+    if(_loop != null) {
+      try { _ch.channel().configureBlocking(false); }
+      catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
+      _loop.register(_ch.channel(), _nioHandler);
+    }
+    else
+      LockSupport.unpark(_downstreamThread);
+    if( ! _reconnecting ) // Else sent after the session is restored
+      sendOutbox();
   }
 
   /** Returns true if the client is connected.
@@ -317,7 +561,7 @@ public class SMQ
     throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     if(subtopic == null)
       smqOnCreatesubAck(ack,true, subtopic, 0);
     else {
@@ -328,21 +572,8 @@ public class SMQ
         OnMsgAck action = new OnMsgAck() {
             public void action(boolean accepted, String topic, long tid) {
               assert subtopic == topic || accepted == false;
-              if(accepted) {
-                Long xtid=tid;
-                synchronized(_lock) {
-                  Long x = _subtopic2tidM.get(subtopic);
-                  if(x == null) {
-                    _subtopic2tidM.put(subtopic,xtid);
-                    _tid2subtopicM.put(xtid,subtopic);
-                    assert _tid2subtopicM.get(xtid) == null;
-                  }
-                  else {
-                    assert x.equals(xtid);
-                    assert subtopic.equals(_tid2subtopicM.get(xtid));
-                  }
-                }
-              }
+              if(accepted)
+                addSubtopic(subtopic, tid);
               smqOnCreatesubAck(ack,accepted, subtopic, tid);
             }
           };
@@ -354,6 +585,253 @@ public class SMQ
     }
   }
 
+  /** Create a topic name and a subtopic name. The future based
+      version of {@link SMQ#create(String,String,IntfOnCreateAck)}.
+      Any number of requests can be made without waiting for the
+      responses; the requests are sent to the broker back-to-back.
+     @param topic the topic name where you plan on publishing messages.
+     @param subtopic the secondary topic name or null.
+     @return a future completed when the broker responds. The future
+     completes exceptionally with SmqException if the request cannot
+     be sent or if the connection closes before the broker responds.
+   */
+  public CompletableFuture<TopicAck> createAsync(String topic, String subtopic)
+  {
+    CompletableFuture<TopicAck> f = newFuture();
+    if( ! f.isDone() ) {
+      try { create(topic, subtopic, ackFuture(f)); }
+      catch(SmqException e) { f.completeExceptionally(e); }
+    }
+    return f;
+  }
+
+  /** Create a topic name.
+      @see SMQ#createAsync(String,String)
+   */
+  public CompletableFuture<TopicAck> createAsync(String topic)
+  {
+    return createAsync(topic, null);
+  }
+
+  /** Create a subtopic name. The future based version of {@link
+      SMQ#createsub}.
+      @see SMQ#createAsync(String,String)
+   */
+  public CompletableFuture<TopicAck> createsubAsync(String subtopic)
+  {
+    final CompletableFuture<TopicAck> f = newFuture();
+    if( ! f.isDone() ) {
+      try {
+        createsub(subtopic, new IntfOnCreatsubeAck() {
+            public void smqOnCreatesubAck(boolean accepted,
+                                          String subtopic, long subtid) {
+              f.complete(new TopicAck(accepted, null, 0, subtopic, subtid));
+            }
+          });
+      }
+      catch(SmqException e) { f.completeExceptionally(e); }
+    }
+    return f;
+  }
+
+  /** Subscribe to a named topic and to a named subtopic. The future
+      based version of {@link
+      SMQ#subscribe(String,String,IntfOnMsg,IntfOnCreateAck)}.
+      @see SMQ#createAsync(String,String)
+   */
+  public CompletableFuture<TopicAck> subscribeAsync(String topic,
+                                                    String subtopic,
+                                                    IntfOnMsg msg)
+  {
+    CompletableFuture<TopicAck> f = newFuture();
+    if( ! f.isDone() ) {
+      try { subscribe(topic, subtopic, msg, ackFuture(f)); }
+      catch(SmqException e) { f.completeExceptionally(e); }
+    }
+    return f;
+  }
+
+  /** Subscribe to a named topic.
+      @see SMQ#subscribeAsync(String,String,IntfOnMsg)
+   */
+  public CompletableFuture<TopicAck> subscribeAsync(String topic,
+                                                    IntfOnMsg msg)
+  {
+    return subscribeAsync(topic, null, msg);
+  }
+
+  /** Create many topic names concurrently. All requests are sent
+      without waiting for the responses.
+      @return a future completed with the responses, in the order of
+      the topics, when the broker has responded to all requests.
+      @see SMQ#createAsync(String,String)
+   */
+  public CompletableFuture<List<TopicAck>> createAllAsync(
+    Collection<String> topics)
+  {
+    List<CompletableFuture<TopicAck>> l =
+      new ArrayList<CompletableFuture<TopicAck>>(topics.size());
+    for(String topic : topics)
+      l.add(createAsync(topic, null));
+    return all(l);
+  }
+
+  /** Create many subtopic names concurrently. All requests are sent
+      without waiting for the responses.
+      @return a future completed with the responses, in the order of
+      the subtopics, when the broker has responded to all requests.
+      @see SMQ#createsubAsync(String)
+   */
+  public CompletableFuture<List<TopicAck>> createsubAllAsync(
+    Collection<String> subtopics)
+  {
+    List<CompletableFuture<TopicAck>> l =
+      new ArrayList<CompletableFuture<TopicAck>>(subtopics.size());
+    for(String subtopic : subtopics)
+      l.add(createsubAsync(subtopic));
+    return all(l);
+  }
+
+  /**
+     Subscribe to many topics and subtopics using pipelined requests.
+     The {@link SMQ#subscribe} method waits for the subtopic ID
+     before subscribing, and subscribing to N topics therefore takes
+     N sequential round trips when the callbacks are chained. This
+     method sends all required createsub and subscribe requests
+     back-to-back, in one upstream batch, and completes as the
+     responses arrive. A message callback is installed when both the
+     topic ID and the subtopic ID are known.
+
+     @param specs the topics and subtopics to subscribe to.
+     @return a future completed with the responses, in the order of
+     the specs, when the broker has responded to all requests.
+   */
+  public CompletableFuture<List<TopicAck>> subscribeAll(
+    Collection<TopicSpec> specs)
+  {
+    List<CompletableFuture<TopicAck>> l =
+      new ArrayList<CompletableFuture<TopicAck>>(specs.size());
+    List<byte[]> frames = new ArrayList<byte[]>();
+    try {
+      boolean rec = _reconnector != null && _conState == 2;
+      for(TopicSpec spec : specs)
+        l.add(subscribe(spec, frames, rec ? record(spec) : null));
+    }
+    catch(IOException e) {
+      CompletableFuture<List<TopicAck>> f =
+        new CompletableFuture<List<TopicAck>>();
+      f.completeExceptionally(e);
+      return f;
+    }
+    if(frames.size() != 0)
+      add2UpstreamQ(frames.toArray(new byte[frames.size()][]), 0);
+    return all(l);
+  }
+
+  // subscribeAll: register the ack actions for one spec and add the
+  // required request frames.
+  private final CompletableFuture<TopicAck> subscribe(
+    final TopicSpec spec, List<byte[]> frames, final TopicSpec prevRec)
+    throws IOException
+  {
+    final String topic = spec.getTopic();
+    final String subtopic = spec.getSubtopic();
+    final IntfOnMsg onMsg = spec._onStream == null ? spec._onMsg :
+      new StreamDelivery(spec._onStream, _threadFactory);
+    final CompletableFuture<TopicAck> f = newFuture();
+    if(f.isDone())
+      return f;
+    final CompletableFuture<TopicAck> subF = new CompletableFuture<TopicAck>();
+    final CompletableFuture<TopicAck> tidF = new CompletableFuture<TopicAck>();
+    long subtid = subtopic == null ? 0 : subtopic2tid(subtopic);
+    if(subtopic == null || subtid != 0)
+      subF.complete(new TopicAck(true, null, 0, subtopic, subtid));
+    else {
+      OnMsgAck action = new OnMsgAck() {
+          public void action(boolean accepted, String subtopic2, long tid) {
+            if(accepted)
+              addSubtopic(subtopic, tid);
+            subF.complete(new TopicAck(accepted, null, 0, subtopic, tid));
+          }
+        };
+      if(add2AckM(_createSubAckM, subtopic, action) == false)
+        frames.add(new OutMsg(MSG_CREATESUB,subtopic).encode());
+    }
+    if("self".equals(topic))
+      tidF.complete(new TopicAck(true, topic, _etid, null, 0));
+    else {
+      add2AckM(_SubAckM, topic, new OnMsgAck() {
+          public void action(boolean accepted, String topic2, long tid) {
+            if(accepted)
+              addTopic(topic, tid);
+            tidF.complete(new TopicAck(accepted, topic, tid, null, 0));
+          }
+        });
+      frames.add(new OutMsg(MSG_SUBSCRIBE,topic).encode());
+    }
+    tidF.thenAcceptBoth(subF, new BiConsumer<TopicAck,TopicAck>() {
+        public void accept(TopicAck t, TopicAck s) {
+          boolean accepted = t.isAccepted() && s.isAccepted();
+          if(accepted && onMsg != null) {
+            synchronized(_lock) {
+              createAndPut(routeKey(t.getTid(),
+                                    subtopic == null ? 0 : s.getSubTid()),
+                           onMsg);
+            }
+          }
+          if( ! accepted )
+            unrecord(spec, prevRec);
+          f.complete(new TopicAck(accepted, topic, t.getTid(),
+                                  subtopic, s.getSubTid()));
+        }
+      });
+    return f;
+  }
+
+  // Returns a future that is failed if not connected. The future is
+  // tracked until completed, thus it can be failed if the connection
+  // closes before the broker responds.
+  private final <T> CompletableFuture<T> newFuture()
+  {
+    final CompletableFuture<T> f = new CompletableFuture<T>();
+    if(_conState != 2) {
+      f.completeExceptionally(new SmqException(SmqException.INVALID_STATE));
+      return f;
+    }
+    _pendingF.add(f);
+    f.whenComplete(new BiConsumer<T,Throwable>() {
+        public void accept(T t, Throwable e) {
+          _pendingF.remove(f);
+        }
+      });
+    return f;
+  }
+
+  private static final IntfOnCreateAck ackFuture(
+    final CompletableFuture<TopicAck> f)
+  {
+    return new IntfOnCreateAck() {
+      public void smqOnCreateAck(boolean accepted, String topic, long tid,
+                                 String subtopic, long subtid) {
+        f.complete(new TopicAck(accepted, topic, tid, subtopic, subtid));
+      }
+    };
+  }
+
+  private static final CompletableFuture<List<TopicAck>> all(
+    final List<CompletableFuture<TopicAck>> l)
+  {
+    return CompletableFuture.allOf(l.toArray(new CompletableFuture<?>[0]))
+      .thenApply(new Function<Void,List<TopicAck>>() {
+          public List<TopicAck> apply(Void v) {
+            List<TopicAck> acks = new ArrayList<TopicAck>(l.size());
+            for(CompletableFuture<TopicAck> f : l)
+              acks.add(f.join());
+            return acks;
+          }
+        });
+  }
+
   /**
      Subscribe to a named topic and to a named subtopic. You can
      subscribe multiple times to the same topic for different subtopic
@@ -388,7 +866,61 @@ public class SMQ
           }
         };
     }
-    createOrSub(topic, subtopic, msg, ack);
+    if(_reconnector == null) {
+      createOrSub(topic, subtopic, msg, ack);
+      return;
+    }
+    if(_conState != 2) // E.g. reconnecting: keep the current record
+      invalidState();
+    final TopicSpec spec = new TopicSpec(topic, subtopic, msg);
+    final IntfOnCreateAck userAck = ack;
+    final TopicSpec prev = record(spec);
+    try {
+      createOrSub(topic, subtopic, msg, new IntfOnCreateAck() {
+          public void smqOnCreateAck(boolean accepted,
+                                     String topic, long tid,
+                                     String subtopic, long subtid) {
+            if( ! accepted )
+              unrecord(spec, prev);
+            userAck.smqOnCreateAck(accepted, topic, tid, subtopic, subtid);
+          }
+        });
+    }
+    catch(SmqException e) { // Closed after the state check
+      unrecord(spec, prev);
+      throw e;
+    }
+  }
+
+  // Record a subscription for the Reconnector's replay. A subscription
+  // to the same topic and subtopic replaces the previous record,
+  // which is returned.
+  private final TopicSpec record(TopicSpec spec)
+  {
+    synchronized(_lock) {
+      return _subRec.put(recKey(spec), spec);
+    }
+  }
+
+  // The subscription failed or the broker rejected it: put the
+  // previous record, if any, back.
+  private final void unrecord(TopicSpec spec, TopicSpec prev)
+  {
+    synchronized(_lock) {
+      String key = recKey(spec);
+      if(_subRec.get(key) == spec) {
+        if(prev != null)
+          _subRec.put(key, prev);
+        else
+          _subRec.remove(key);
+      }
+    }
+  }
+
+  private static final String recKey(TopicSpec spec)
+  {
+    return spec.getSubtopic() == null ? spec.getTopic() :
+      spec.getTopic() + '\0' + spec.getSubtopic();
   }
 
   /**
@@ -418,6 +950,36 @@ public class SMQ
     subscribe(topic, null, msg, ack);
   }
 
+  /**
+     Subscribe to a named topic and to a named subtopic and receive
+     the messages as streams. A fragmented message is delivered as it
+     arrives, without being reassembled, and the callback runs in a
+     delivery thread, which is reused for the subscription's following
+     messages. The threads are created by the ThreadFactory passed to
+     the constructor, if any.
+
+     @param topic the topic name to subscribe to. The topic name 'self'
+     means subscribing to the client's own Ephemeral Topic ID.
+
+     @param subtopic the subtopic name to subscribe to. Set to null
+     to subscribe to the topic and create a "catch all" for subtopics
+     not subscribed to.
+
+     @param onStream the callback is called for each message received
+     from the broker.
+
+     @param ack optional on subscribe ack callback. Set to null if not needed.
+
+     @see SMQ#subscribe(String,String,IntfOnMsg,IntfOnCreateAck)
+   */
+  public void subscribeStream(String topic, String subtopic,
+                              IntfOnMsgStream onStream, IntfOnCreateAck ack)
+    throws SmqException
+  {
+    subscribe(topic, subtopic,
+              new StreamDelivery(onStream, _threadFactory), ack);
+  }
+
   /** Publish a message to a named topic and set subtopic ID to zero.
       @param topic the topic name is automatically translated to topic
       ID if the topic name is not known by the client.
@@ -480,19 +1042,28 @@ public class SMQ
                       final byte[] data)
     throws SmqException
   {
+    Outbox ob = _outbox;
+    if(ob != null && (_conState != 2 || ob.isDurable() || ! ob.isEmpty())) {
+      journal(ob, topic, subtopic, 0, 0, data, 0, data.length);
+      return;
+    }
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     long subtid=0;
-    if( subtopic != null && (subtid=subtopic2tid(subtopic)) == 0 ) {
+    TopicCache tc = _topicCache;
+    if( subtopic != null && (subtid=subtopic2tid(subtopic)) == 0 &&
+        tc != null && (subtid=tc.subtopic(subtopic)) != 0 )
+      createsub(subtopic, _cacheSubAck); // Revalidate the cached subtid
+    if( subtopic != null && subtid == 0 ) {
       IntfOnCreatsubeAck action = new IntfOnCreatsubeAck() {
           public void smqOnCreatesubAck(
            final boolean accepted, final String subtopic, final long subtid) {
             if(accepted) {
               try { publish(topic, subtid, data); }
-              catch(SmqException drop) {}
+              catch(SmqException e) { _metrics.publishFailed(); }
             }
             else
-              System.out.println("Dropping on pub "+topic+" : "+subtopic);
+              _metrics.publishFailed();
           }
         };
       createsub(subtopic, action);
@@ -514,11 +1085,18 @@ public class SMQ
   public void publish(final String topic, final long subtid, final byte[] data)
     throws SmqException
   {
+    Outbox ob = _outbox;
+    if(ob != null && (_conState != 2 || ob.isDurable() || ! ob.isEmpty())) {
+      journal(ob, topic, null, 0, subtid, data, 0, data.length);
+      return;
+    }
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
-
+      invalidState();
 
     long tid=topic2tid(topic);
+    TopicCache tc = _topicCache;
+    if( tid == 0 && tc != null && (tid=tc.topic(topic)) != 0 )
+      create(topic, _cacheAck); // Revalidate the cached tid
     if( tid == 0 ) {
       IntfOnCreateAck action = new IntfOnCreateAck() {
           public void smqOnCreateAck(final boolean accepted,
@@ -526,10 +1104,10 @@ public class SMQ
                                      final String na1, final long na2) {
             if(accepted) {
               try { publish(tid, subtid, data, 0, data.length); }
-              catch(SmqException drop) {}
+              catch(SmqException e) { _metrics.publishFailed(); }
             }
             else
-              System.out.println("Dropping on pub "+topic);
+              _metrics.publishFailed();
           }
         };
       create(topic, action);
@@ -561,21 +1139,212 @@ public class SMQ
      @param b the data to published.
      @param off the start offset in the data.
      @param len the number of bytes to write.
+     <p>
+     Messages larger than the maximum frame size (64K) are sent as a
+     sequence of fragments, which are reassembled by the receiver.
+     <p>
+     The message is journaled if an outbox is enabled and the client
+     is not connected; see {@link SMQ#setOutbox}.
    */
   public void publish(long tid, long subtid, byte[] b, int off, int len)
     throws SmqException
+  {
+    Outbox ob = _outbox;
+    if(ob != null && (_conState != 2 || ob.isDurable() || ! ob.isEmpty())) {
+      journal(ob, null, null, tid, subtid, b, off, len);
+      return;
+    }
+    publishNow(tid, subtid, b, off, len);
+  }
+
+  /** Publish the remaining bytes in the buffer to a (named topic or
+      ephemeral topic ID) and to a named subtopic. The buffer's
+      position is set to its limit. The data is copied directly from
+      the buffer to the frame unless the message must be fragmented.
+     @param tid the topic ID (from named topic) or ephemeral topic ID.
+     @param subtid the subtopic ID (from named subtopic). Set to zero
+     if not used.
+     @param data the data to publish.
+   */
+  public void publish(long tid, long subtid, ByteBuffer data)
+    throws SmqException
+  {
+    int len = data.remaining();
+    if(data.hasArray()) {
+      publish(tid, subtid, data.array(),
+              data.arrayOffset() + data.position(), len);
+      data.position(data.limit());
+      return;
+    }
+    if(len > MAX_PAYLOAD || _outbox != null) {
+      byte[] b = new byte[len];
+      data.get(b);
+      publish(tid, subtid, b, 0, len);
+      return;
+    }
+    if(_conState != 2)
+      invalidState();
+    byte[] frame = _bufPool.get(15+len);
+    putPubHeader(frame, MSG_PUBLISH, tid, subtid, len);
+    data.get(frame, 15, len);
+    queuePublish(frame, 15+len);
+  }
+
+  /** Returns the handle for publishing to a named topic. The handle
+      resolves the topic name once and is the fastest way to
+      repeatedly publish to a named topic; see {@link Topic}.
+     @param topic the topic name.
+   */
+  public Topic topic(String topic)
+  {
+    Topic t = _topicH.get(topic);
+    if(t == null) {
+      t = new Topic(this, topic, null);
+      Topic x = _topicH.putIfAbsent(topic, t);
+      if(x != null)
+        t = x;
+    }
+    return t;
+  }
+
+  // Incremented when the connection closes: the IDs resolved by a
+  // Topic handle are valid while the generation is unchanged.
+  final int generation()
+  {
+    return _gen;
+  }
+
+  // Queue the message, bypassing the outbox.
+  private final void publishNow(long tid, long subtid,
+                                byte[] b, int off, int len)
+    throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
-    try {
-      OutMsg msg = new OutMsg(MSG_PUBLISH);
-      msg.writeUnsignedInt(tid);
-      msg.writeUnsignedInt(_etid);
-      msg.writeUnsignedInt(subtid);
-      msg.dos.write(b,off,len);
-      add2UpstreamQ(msg);
+      invalidState();
+    if(len <= MAX_PAYLOAD) {
+      queuePublish(encodePub(MSG_PUBLISH, tid, subtid, b, off, len), 15+len);
+      return;
     }
-    catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
+    // The fragments are queued as one element, thus fragments from
+    // messages published concurrently are not interleaved.
+    byte[][] frames = encodeFrags(tid, subtid, b, off, len);
+    queuePublish(frames, len + 15*frames.length);
+  }
+
+  // Encode a message as a sequence of MSG_PUBFRAG frames followed by
+  // a MSG_PUBLISH frame.
+  private final byte[][] encodeFrags(long tid, long subtid,
+                                     byte[] b, int off, int len)
+  {
+    byte[][] frames = new byte[Math.max(1,(len+MAX_PAYLOAD-1)/MAX_PAYLOAD)][];
+    for(int i=0 ; i < frames.length ; i++) {
+      int n = Math.min(MAX_PAYLOAD, len);
+      len -= n;
+      frames[i]=encodePub(len == 0 ? MSG_PUBLISH : MSG_PUBFRAG,
+                          tid, subtid, b, off, n);
+      off += n;
+    }
+    return frames;
+  }
+
+  // Append a message to the outbox. The topic and subtopic names are
+  // looked up if null: the names are journaled since the topic IDs
+  // may change when reconnecting.
+  private final void journal(Outbox ob, String topic, String subtopic,
+                             long tid, long subtid,
+                             byte[] b, int off, int len) throws SmqException
+  {
+    if(_closed)
+      invalidState();
+    synchronized(_lock) {
+      boolean con = _conState == 2;
+      if(topic == null)
+        topic = (con ? _tid2topicM : _lostTid2topicM).get(tid);
+      if(subtopic == null && subtid != 0)
+        subtopic = (con ? _tid2subtopicM : _lostTid2subtopicM).get(subtid);
+    }
+    // Not journaled: an ephemeral topic ID or an unknown name.
+    if(topic == null || (subtid != 0 && subtopic == null)) {
+      if(_conState != 2)
+        invalidState();
+      publishNow(tid, subtid, b, off, len);
+      return;
+    }
+    byte[][] frames = encodeFrags(tid, subtid, b, off, len);
+    boolean ok = ob.append(topic, subtopic, frames);
+    for(byte[] f : frames)
+      _bufPool.release(f);
+    if( ! ok )
+      throw new SmqException(SmqException.QUEUE_FULL);
+    sendOutbox();
+  }
+
+  // Encode a MSG_PUBLISH or MSG_PUBFRAG frame directly into a pooled
+  // buffer: the payload is copied once.
+  private final byte[] encodePub(short msgType, long tid, long subtid,
+                                 byte[] b, int off, int len)
+  {
+    byte[] frame = _bufPool.get(15+len);
+    putPubHeader(frame, msgType, tid, subtid, len);
+    System.arraycopy(b, off, frame, 15, len);
+    return frame;
+  }
+
+  private final void putPubHeader(byte[] frame, short msgType,
+                                  long tid, long subtid, int len)
+  {
+    int size = 15+len;
+    frame[0] = (byte)(size >> 8);
+    frame[1] = (byte)size;
+    frame[2] = (byte)msgType;
+    putUnsignedInt(frame, 3, tid);
+    putUnsignedInt(frame, 7, _etid);
+    putUnsignedInt(frame, 11, subtid);
+  }
+
+  /** Open a stream for publishing one message whose data is written
+      incrementally. The data is sent as fragments while it is
+      written and the message is completed when the stream is closed.
+     @param tid the topic ID (from named topic) or ephemeral topic ID.
+     @param subtid the subtopic ID (from named subtopic). Set to zero
+     if not used.
+     @see PublishStream
+   */
+  public PublishStream openPublishStream(long tid, long subtid)
+    throws SmqException
+  {
+    if(_conState != 2)
+      invalidState();
+    return new PublishStream(this, tid, subtid);
+  }
+
+  // Used by PublishStream: returns a buffer for one PUBLISH frame.
+  final byte[] allocFrame()
+  {
+    return _bufPool.get(0xFFFF);
+  }
+
+  // Used by PublishStream: queue a frame holding len bytes of payload.
+  // Waits while the upstream queue holds more than STREAM_MAX_QUEUED
+  // elements, thus a stream buffers little data in the queue.
+  final void sendStreamFrame(byte[] frame, int len, boolean last,
+                             long tid, long subtid) throws IOException
+  {
+    while(_conState == 2 && _upstreamQ.size() >= STREAM_MAX_QUEUED &&
+          ! (_loop != null && _loop.inLoop())) {
+      if(_loop != null)
+        scheduleDrain();
+      else
+        LockSupport.unpark(_upstreamThread);
+      LockSupport.parkNanos(100*1000);
+    }
+    if(_conState != 2) {
+      _bufPool.release(frame);
+      throw new IOException(new SmqException(SmqException.INVALID_STATE));
+    }
+    putPubHeader(frame, last ? MSG_PUBLISH : MSG_PUBFRAG, tid, subtid, len);
+    if( ! add2UpstreamQ(new StreamFrame(frame), 15+len) )
+      throw new IOException(new SmqException(SmqException.DISCONNECT));
   }
 
   /**
@@ -603,11 +1372,25 @@ public class SMQ
     throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     if(tid != 0) {
       if(sendTidMsg(MSG_UNSUBSCRIBE, tid)) {
-        _callbackSubM.remove(tid);
-        _callbackM.remove(tid);
+        String topic = tid2topic(tid);
+        synchronized(_lock) {
+          if(topic != null) {
+            Iterator<TopicSpec> it = _subRec.values().iterator();
+            while(it.hasNext()) {
+              if(topic.equals(it.next().getTopic()))
+                it.remove();
+            }
+          }
+          LongMap<IntfOnMsg[]> m = _routeM.copy();
+          for(long key : m.keys()) {
+            if((key >>> 32) == tid)
+              m.remove(key);
+          }
+          _routeM = m;
+        }
       }
     }
   }
@@ -657,14 +1440,26 @@ public class SMQ
     throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     if(tid != 0 && sendTidMsg(MSG_OBSERVE, tid)) {
-      LinkedList<IntfOnChange> l = _changeM.get(tid);
-      if(l == null) {
-        l = new  LinkedList<IntfOnChange>();
-        _changeM.put(tid, l);
+      String topic = _reconnector == null ? null : tid2topic(tid);
+      synchronized(_lock) {
+        LinkedList<IntfOnChange> l = _changeM.get(tid);
+        if(l == null) {
+          l = new  LinkedList<IntfOnChange>();
+          _changeM.put(tid, l);
+        }
+        l.add(ch);
+        if(topic != null && ! topic.equals("self")) { // Named topic
+          ArrayList<IntfOnChange> r = _obsRec.get(topic);
+          if(r == null) {
+            r = new ArrayList<IntfOnChange>();
+            _obsRec.put(topic, r);
+          }
+          if( ! r.contains(ch) )
+            r.add(ch);
+        }
       }
-      l.add(ch);
     }
   }
 
@@ -688,11 +1483,17 @@ public class SMQ
     throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
-    if(tid != 0 && sendTidMsg(MSG_UNOBSERVE, tid))
-      _changeM.remove(tid);
-  }
-
+      invalidState();
+    if(tid != 0 && sendTidMsg(MSG_UNOBSERVE, tid)) {
+      String topic = tid2topic(tid);
+      synchronized(_lock) {
+        _changeM.remove(tid);
+        if(topic != null)
+          _obsRec.remove(topic);
+      }
+    }
+  }
+
 
   /**
      Terminate the upstream and downstream threads and close the
@@ -704,28 +1505,32 @@ public class SMQ
      @param onClose optional callback
    */
   public void close(final boolean flush, final IntfOnClose onClose) {
-      if (_downstreamThread != null) {
+      if ( ! _closed ) {
+          _closed = true;
           _isRunning = false;
-          synchronized (_downstreamThread) {
-              Thread t = _downstreamThread;
-              _downstreamThread = null;
-              t.notify();
-          }
+          LockSupport.unpark(_outboxThread);
+          Thread dt = _downstreamThread;
+          _downstreamThread = null;
+          LockSupport.unpark(dt);
           Runnable r = new Runnable() {
               public void run() {
-                  synchronized (_upstreamThread) {
-                      Thread t = _upstreamThread;
-                      _upstreamThread = null;
-                      t.notify();
-                  }
+                  Thread t = _upstreamThread;
+                  _upstreamThread = null;
+                  LockSupport.unpark(t);
                   if (flush && _conState == 2) {
                       try {
                           OutMsg msg = new OutMsg(MSG_DISCONNECT);
-                          msg.send(_sock);
+                          msg.send();
                       } catch (IOException ignore) {
                       }
                   }
                   sockClose();
+                  Outbox ob = _outbox;
+                  if (ob != null)
+                      ob.close();
+                  TopicCache tc = _topicCache;
+                  if (tc != null)
+                      tc.save();
                   if (onClose != null)
                       onClose.smqOnClose(null);
                   //System.out.println("sockClose");
@@ -742,15 +1547,356 @@ public class SMQ
           onClose.smqOnClose(null);
   }
 
-  private void createAndPut(Map<Long,LinkedList<IntfOnMsg>> map,
-                            Long key,IntfOnMsg val)
+  /**
+     Configure how the upstream thread coalesces queued messages into
+     socket writes. The upstream thread copies all queued messages
+     into one buffer and sends the buffer using a single write,
+     thus creating fewer TLS records and TCP segments.
+
+     @param maxBytes the batch buffer size, i.e. the maximum number of
+     bytes sent in one write. Messages larger than the buffer are
+     sent directly. The default is 16384.
+
+     @param maxLatencyMicros how long the upstream thread may wait
+     for more messages before writing a partially filled batch. The
+     default is zero, meaning the batch is written as soon as the
+     queue is empty.
+   */
+  public void setUpstreamBatch(int maxBytes, int maxLatencyMicros)
+  {
+    if(maxBytes < 64)
+      maxBytes=64;
+    _batchSize = maxBytes;
+    _batchLatency = maxLatencyMicros < 0 ? 0 : maxLatencyMicros*1000L;
+  }
+
+  /**
+     Configure the buffer pool used when encoding messages sent to
+     the broker. Messages are encoded directly into a pooled buffer
+     that is large enough to hold the message, and the buffer is
+     returned to the pool when the message has been sent. The method
+     should be called prior to calling {@link SMQ#connect}.
+
+     @param sizeClasses the buffer sizes, e.g. {64, 256, 1024, 4096,
+     16384, 65535}. Messages larger than the largest size class use a
+     non pooled buffer.
+
+     @param buffersPerClass the maximum number of free buffers kept
+     for each size class.
+   */
+  public void setBufPool(int[] sizeClasses, int buffersPerClass)
+  {
+    _bufPool = new BufPool(sizeClasses, buffersPerClass);
+  }
+
+  /**
+     Set the size of the receive buffer. The downstream thread reads
+     the socket in chunks of up to this size and decodes the received
+     messages from memory. The buffer is never smaller than 64K,
+     which is also the default. The method must be called prior to
+     calling {@link SMQ#init} or {@link SMQ#connect}.
+     @param size the receive buffer size in bytes.
+   */
+  public void setReceiveBufferSize(int size)
+  {
+    _rbufSize = size;
+  }
+
+  /** Overflow policy: the publishing thread waits until the
+      upstream queue has room for the message.
+      @see SMQ#setUpstreamQueue
+   */
+  public static final int QUEUE_BLOCK = 0;
+
+  /** Overflow policy: publish throws SmqException with reason
+      {@link SmqException#QUEUE_FULL}.
+      @see SMQ#setUpstreamQueue
+   */
+  public static final int QUEUE_FAIL = 1;
+
+  /** Overflow policy: the oldest queued messages are dropped to make
+      room for the new message.
+      @see SMQ#setUpstreamQueue
+   */
+  public static final int QUEUE_DROP_OLDEST = 2;
+
+  /** Overflow policy: the new message is dropped.
+      @see SMQ#setUpstreamQueue
+   */
+  public static final int QUEUE_DROP_NEWEST = 3;
+
+  /**
+     Set the capacity of the upstream queue and the policy applied to
+     published messages when the queue is full, e.g. when the broker
+     connection stalls. The capacity applies to published messages;
+     control messages such as subscribe requests are always queued.
+     The default is 4096 messages, 16 MByte, and {@link #QUEUE_BLOCK}.
+     Messages published using a {@link PublishStream} always block.
+     The method must be called prior to calling {@link SMQ#init} or
+     {@link SMQ#connect}.
+     <p>
+     With {@link #QUEUE_DROP_OLDEST}, the new message is dropped if
+     the oldest queued element is a control message.
+
+     @param maxMessages the maximum number of queued messages.
+     @param maxBytes the maximum number of queued bytes.
+     @param policy {@link #QUEUE_BLOCK}, {@link #QUEUE_FAIL}, {@link
+     #QUEUE_DROP_OLDEST}, or {@link #QUEUE_DROP_NEWEST}.
+     @see SMQ#getUpstreamDropped
+   */
+  public void setUpstreamQueue(int maxMessages, long maxBytes, int policy)
+  {
+    if(maxMessages < 1) maxMessages=1;
+    _upstreamQ = new RingQ<Object>(maxMessages + UPSTREAMQ_CTRL);
+    _qMaxMsgs = maxMessages;
+    _qMaxBytes = maxBytes;
+    _qPolicy = policy;
+  }
+
+  /** Returns the number of published messages dropped by the
+      overflow policy.
+   */
+  public long getUpstreamDropped()
+  {
+    return _qDropped.get();
+  }
+
+  /** Returns the number of bytes in the published messages dropped by
+      the overflow policy, including the frame headers.
+   */
+  public long getUpstreamDroppedBytes()
+  {
+    return _qDroppedBytes.get();
+  }
+
+  /** Returns the number of times publish failed with {@link
+      SmqException#QUEUE_FULL}.
+   */
+  public long getUpstreamRejected()
+  {
+    return _qRejected.get();
+  }
+
+  /** Returns the number of published bytes waiting in the upstream queue.
+   */
+  public long getUpstreamQueued()
+  {
+    return _qBytes.get();
+  }
+
+  /** Returns the instance's counters, histograms, and rates.
+      @see MetricsJmx
+   */
+  public Metrics getMetrics()
+  {
+    return _metrics;
+  }
+
+  final long upstreamQueueDepth()
   {
-    LinkedList<IntfOnMsg> l = map.get(key);
-    if(l == null) {
-      l = new  LinkedList<IntfOnMsg>();
-      map.put(key, l);
+    return _upstreamQ.size();
+  }
+
+  /**
+     Enable automatic reconnect. When the connection to the broker is
+     lost, the stack reconnects using exponential backoff with jitter
+     and restores the subscriptions, the observers, and the topic and
+     subtopic names resolved prior to the disconnect. The restore
+     requests are sent to the broker in one pipelined batch. A
+     subscription is restored once per topic and subtopic, using the
+     most recent callback, and is not restored after the topic is
+     unsubscribed or if the broker rejected it. A disconnect requested
+     by the broker, e.g. when the broker shuts down, is retried. The
+     IntfOnClose callback is called only if the stack gives up, e.g.
+     if the broker rejects the credentials. The listener is called as
+     the other callbacks, see {@link #setDispatcher}.
+     <p>
+     Topic IDs may change when the broker restarts; use the topic
+     names or the topic2tid method after a reconnect. The method must
+     be called prior to subscribing.
+
+     @param minDelay the delay in milliseconds prior to the first
+     attempt. The delay is doubled for each failed attempt.
+     @param maxDelay the maximum delay in milliseconds.
+     @param maxAttempts the maximum number of attempts or zero for no
+     limit.
+     @param listener optional callback, set to null if not needed.
+   */
+  public void setReconnect(long minDelay, long maxDelay, int maxAttempts,
+                           IntfOnReconnect listener)
+  {
+    _onReconnect = listener;
+    _reconnector = new Reconnector(this, minDelay, maxDelay, maxAttempts);
+  }
+
+  /**
+     Enable the outbox: a journal, stored in memory mapped files, for
+     messages published when the client is not connected. The
+     messages are sent in order when the client connects, after the
+     messages journaled by a previous run, if any. The messages queued
+     but not sent when the connection is lost are moved to the
+     outbox. The journal is split into segment files and a segment
+     file is deleted when all of its messages are written to the
+     socket. The method must be called prior to calling {@link
+     SMQ#init} or {@link SMQ#connect}.
+     <p>
+     The journal stores the topic and subtopic names, not the IDs;
+     messages published to an ephemeral topic ID are not journaled.
+     The topic names are resolved when the messages are sent, thus
+     {@link SMQ#publish(String,String,byte[])} can be used when not
+     connected. In durable mode, all published messages are journaled
+     and sent from the journal; use durable mode for data that must
+     not be lost if the application exits while connected. Messages
+     published using a {@link PublishStream} are not journaled.
+     Publish fails with {@link SmqException#QUEUE_FULL} when the
+     outbox is full.
+
+     @param dir the directory for the journal files, created if needed.
+     @param maxSize the maximum size of the journaled messages, in bytes.
+     @param segmentSize the size of a journal file; the minimum is 1 MByte.
+     @param durable true: journal all messages.
+     @see SMQ#getOutboxSize
+   */
+  public void setOutbox(File dir, long maxSize, int segmentSize,
+                        boolean durable)
+    throws SmqException
+  {
+    try { _outbox = new Outbox(dir, maxSize, segmentSize, durable); }
+    catch(IOException e) { throw new SmqException(SmqException.INVALID_ARG, e); }
+  }
+
+  /** Returns the size, in bytes, of the journaled messages not yet
+      written to the socket or zero if the outbox is not enabled.
+   */
+  public long getOutboxSize()
+  {
+    Outbox ob = _outbox;
+    return ob == null ? 0 : ob.size();
+  }
+
+  /** Returns the number of messages dropped since the outbox was full.
+   */
+  public long getOutboxDropped()
+  {
+    Outbox ob = _outbox;
+    return ob == null ? 0 : ob.getDropped();
+  }
+
+  /**
+     Enable the topic cache: the topic and subtopic IDs resolved by
+     the broker are saved in a file and loaded the next time the
+     application starts. The publish methods using a topic name
+     unknown to the client then use the cached ID immediately instead
+     of waiting for the broker's response. The cached ID is
+     revalidated, in the background, by sending the create request
+     and the cache is updated if the broker responds with a different
+     ID. The broker normally assigns the same ID to a name, but a
+     message published using an outdated ID, e.g. after a broker
+     restart, is published to the wrong topic; do not use the cache if
+     this is not acceptable. The method must be called prior to
+     calling {@link SMQ#connect}.
+     @param file the cache file; use one file per broker.
+   */
+  public void setTopicCache(File file)
+  {
+    _topicCache = new TopicCache(file, _smqUrl.toString(), _threadFactory);
+  }
+
+  /**
+     Set the memory limits for reassembling fragmented messages. A
+     message larger than maxMessageSize is dropped, as is a message
+     that would make the buffered fragments of all partially received
+     messages exceed maxTotalSize. A partially received message is
+     dropped if no fragment is received for 60 seconds. The defaults
+     are 4 MByte and 16 MByte. The method must be called prior to calling {@link
+     SMQ#init} or {@link SMQ#connect}.
+     @param maxMessageSize the maximum size of a reassembled message.
+     @param maxTotalSize the maximum size of all buffered fragments.
+   */
+  public void setReassembly(int maxMessageSize, int maxTotalSize)
+  {
+    _maxMsgSize = maxMessageSize;
+    _maxFragTotal = maxTotalSize;
+  }
+
+  /**
+     Enable or disable fragment delivery. The fragments of a message
+     larger than the maximum frame size are by default buffered and
+     the message is delivered when all fragments are received. When
+     fragment delivery is enabled, the fragments are not buffered and
+     each fragment is delivered to the subscribers as it arrives. The
+     fragments of a message are delivered in order and the Msg
+     instance provides the fragment information; see {@link
+     Msg#isFragment}.
+     @param enable true for fragment delivery.
+   */
+  public void setFragmentDelivery(boolean enable)
+  {
+    _fragDelivery = enable;
+  }
+
+  // Composite (tid,subtid) key for _routeM. Subtid zero is the
+  // "catch all" for the topic. Topic IDs are 32 bit values.
+  private static final long routeKey(long tid, long subtid)
+  {
+    return (tid << 32) | subtid;
+  }
+
+  // Subscribing copies the routing table and the callback array,
+  // and publishes the copy; thus runOnMsg reads _routeM without
+  // locking. Must be called with _lock held.
+  private void createAndPut(long key,IntfOnMsg val)
+  {
+    LongMap<IntfOnMsg[]> m = _routeM.copy();
+    IntfOnMsg[] a = m.get(key);
+    if(a == null)
+      a = new IntfOnMsg[] {val};
+    else {
+      a = Arrays.copyOf(a, a.length+1);
+      a[a.length-1] = val;
+    }
+    m.put(key, a);
+    _routeM = m;
+  }
+
+  private final void addTopic(String topic, long tid)
+  {
+    Long xtid=tid;
+    synchronized(_lock) {
+      Long x = _topic2tidM.get(topic);
+      if(x == null) {
+        _topic2tidM.put(topic,xtid);
+        _tid2topicM.put(xtid,topic);
+        assert _tid2topicM.get(xtid) == null;
+        TopicCache tc = _topicCache;
+        if(tc != null && ! "self".equals(topic))
+          tc.put(false, topic, tid);
+      }
+      else {
+        assert x.equals(xtid);
+        assert topic.equals(_tid2topicM.get(xtid));
+      }
+    }
+  }
+
+  private final void addSubtopic(String subtopic, long subtid)
+  {
+    Long xtid=subtid;
+    synchronized(_lock) {
+      Long x = _subtopic2tidM.get(subtopic);
+      if(x == null) {
+        _subtopic2tidM.put(subtopic,xtid);
+        _tid2subtopicM.put(xtid,subtopic);
+        assert _tid2subtopicM.get(xtid) == null;
+        TopicCache tc = _topicCache;
+        if(tc != null)
+          tc.put(true, subtopic, subtid);
+      }
+      else {
+        assert x.equals(xtid);
+        assert subtopic.equals(_tid2subtopicM.get(xtid));
+      }
     }
-    l.add(val);
   }
 
   private void createOrSub(final String topic, final String subtopic,
@@ -758,7 +1904,7 @@ public class SMQ
     throws SmqException
   {
     if(_conState != 2)
-      doEx(SmqException.INVALID_STATE);
+      invalidState();
     IntfOnCreatsubeAck sa = new IntfOnCreatsubeAck() {
         public void smqOnCreatesubAck(final boolean accepted,
                                       final String subtopic2, final long subtid)
@@ -775,32 +1921,11 @@ public class SMQ
               public void action(boolean accepted, String topic2, long tid) {
                 assert topic == topic2 || accepted == false;
                 if(accepted) {
-                  Long xtid=tid;
                   synchronized(_lock) {
-                    Long x = _topic2tidM.get(topic);
-                    if(x == null) {
-                      _topic2tidM.put(topic,xtid);
-                      _tid2topicM.put(xtid,topic);
-                      assert _tid2topicM.get(xtid) == null;
-                    }
-                    else {
-                      assert x.equals(xtid);
-                      assert topic.equals(_tid2topicM.get(xtid));
-                    }
-                    if(onMsg != null) { // If subscribe
-                      if(subtopic == null) {
-                        createAndPut(_callbackM, tid, onMsg);
-                      }
-                      else {
-                        Map<Long,LinkedList<IntfOnMsg>> m = 
-                          _callbackSubM.get(tid);
-                        if(m == null) {
-                          m = new HashMap<Long,LinkedList<IntfOnMsg>>();
-                          _callbackSubM.put(tid, m);
-                        }
-                        createAndPut(m, subtid, onMsg);  
-                      }
-                    }
+                    addTopic(topic, tid);
+                    if(onMsg != null) // If subscribe
+                      createAndPut(routeKey(tid, subtopic == null ? 0 : subtid),
+                                   onMsg);
                   }
                 }
                 smqOnCreateAck(ack,accepted, topic, tid, subtopic, subtid);
@@ -827,50 +1952,371 @@ public class SMQ
     createsub(subtopic, sa);
   }
 
+  /**
+     Set the strategy used for running the user callbacks. By
+     default, the callbacks run inline in the context of the
+     downstream thread (or the EventLoop thread), and a slow callback
+     therefore delays all messages received on the connection. The
+     callbacks are dropped if the dispatcher is closed while in use;
+     the dropped messages are counted by {@link
+     Metrics#getMessagesUndeliverable}.
+
+     @param dispatcher the dispatcher running the callbacks or null
+     for running the callbacks inline.
+   */
+  public void setDispatcher(Dispatcher dispatcher)
+  {
+    _dispatcher = dispatcher;
+  }
+
+  /**
+     Set the callback receiving the messages for which no callback is
+     found, e.g. messages received after unsubscribing or for a
+     subtopic without a callback. Such messages are otherwise
+     dropped; they are counted by {@link
+     Metrics#getMessagesUndeliverable}. The callback is run as the
+     other callbacks, see {@link #setDispatcher}, and must not block
+     when run inline. Use a {@link DeadLetterQueue} to keep the most
+     recent messages for later inspection.
+
+     @param deadLetter the callback or null for dropping the messages.
+   */
+  public void setDeadLetter(IntfOnMsg deadLetter)
+  {
+    _deadLetter = deadLetter;
+  }
+
   void smqOnCreateAck(final IntfOnCreateAck ack,final boolean accepted,
                       final String topic, final long tid,
                       final String subtopic, final long subtid)
   {
-    ack.smqOnCreateAck(accepted,topic, tid, subtopic, subtid);
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      ack.smqOnCreateAck(accepted,topic, tid, subtopic, subtid);
+    else {
+      d.execute(tid, new Runnable() {
+          public void run() {
+            ack.smqOnCreateAck(accepted,topic, tid, subtopic, subtid);
+          }
+        });
+    }
   }
 
   void smqOnCreatesubAck(final IntfOnCreatsubeAck ca, final boolean accepted,
                          final String subtopic, final long subtid)
   {
-    ca.smqOnCreatesubAck(accepted,subtopic,subtid);
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      ca.smqOnCreatesubAck(accepted,subtopic,subtid);
+    else {
+      d.execute(subtid, new Runnable() {
+          public void run() {
+            ca.smqOnCreatesubAck(accepted,subtopic,subtid);
+          }
+        });
+    }
   }
 
   void smqOnMsg(final IntfOnMsg om, final Msg msg)
   {
-    om.smqOnMsg(msg);
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      timedOnMsg(om, msg);
+    else {
+      final Msg m = msg.detach();
+      boolean queued = d.execute(m.getTid(), new Runnable() {
+          public void run() {
+            timedOnMsg(om, m);
+          }
+        });
+      if( ! queued ) // The dispatcher is closed
+        _metrics.undeliverable();
+    }
+  }
+
+  private final void timedOnMsg(IntfOnMsg om, Msg msg)
+  {
+    Metrics mx = _metrics;
+    if( ! mx._timing ) {
+      om.smqOnMsg(msg);
+      return;
+    }
+    long t = System.nanoTime();
+    try { om.smqOnMsg(msg); }
+    finally { mx._callbackTime.record(System.nanoTime() - t); }
+  }
+
+  void smqOnClose(final IntfOnClose oc, final SmqException e)
+  {
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      oc.smqOnClose(e);
+    else {
+      d.execute(0, new Runnable() {
+          public void run() {
+            oc.smqOnClose(e);
+          }
+        });
+    }
+  }
+
+  void smqOnDisconnect(final IntfOnReconnect l, final SmqException e)
+  {
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      l.smqOnDisconnect(e);
+    else {
+      d.execute(0, new Runnable() {
+          public void run() {
+            l.smqOnDisconnect(e);
+          }
+        });
+    }
   }
 
-  void smqOnClose(IntfOnClose oc, SmqException e)
+  void smqOnReconnect(final IntfOnReconnect l, final int attempts)
   {
-    oc.smqOnClose(e);
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      l.smqOnReconnect(attempts);
+    else {
+      d.execute(0, new Runnable() {
+          public void run() {
+            l.smqOnReconnect(attempts);
+          }
+        });
+    }
   }
 
-  void smqOnChange(IntfOnChange oc, final long subscribers, final long tid)
+  void smqOnChange(final IntfOnChange oc, final long subscribers,
+                   final long tid)
   {
-    oc.smqOnChange(subscribers, tid);
+    Dispatcher d = _dispatcher;
+    if(d == null)
+      oc.smqOnChange(subscribers, tid);
+    else {
+      d.execute(tid, new Runnable() {
+          public void run() {
+            oc.smqOnChange(subscribers, tid);
+          }
+        });
+    }
   }
 
 
+  // Encode the message and queue the frame for the upstream thread.
   private final void add2UpstreamQ(final OutMsg msg)
   {
-    Runnable r = new Runnable() {
-        public void run() {
-          try { msg.send(_sock); }
-          catch(IOException e){ manageUnexpectedClose(e); }
+    add2UpstreamQ((Object)msg.encode());
+  }
+
+  private final void add2UpstreamQ(Object o)
+  {
+    add2UpstreamQ(o, 0);
+  }
+
+  // Queue element is an encoded frame (byte[]), the frames of a
+  // fragmented message (byte[][]), a PublishStream frame
+  // (StreamFrame), or a Runnable. Size is the size of
+  // a PUBLISH frame or of the frames of a fragmented message, which
+  // are subject to the queue's capacity, and zero for control
+  // messages, which are only limited by the size of the ring.
+  // Lock free: waits (parks) only if the queue is full. Returns
+  // false if the connection closed while waiting and the message was
+  // dropped; a PUBLISH is then moved to the outbox, if any, as
+  // sockClose does.
+  private final boolean add2UpstreamQ(Object o, int size)
+  {
+    RingQ<Object> q = _upstreamQ;
+    int gen = _gen;
+    while( (size != 0 && ! hasRoom(q, size)) || ! q.offer(o) ) {
+      if(_gen != gen) { // Closed: the queue is no longer drained
+        LongMap<String> t2t, t2st;
+        synchronized(_lock) {
+          _pubStamp.set(null);
+          t2t = _lostTid2topicM;
+          t2st = _lostTid2subtopicM;
         }
-      };
-    add2UpstreamQ(r);
+        return closedUpstream(o, size, t2t, t2st);
+      }
+      if(_loop != null) {
+        if(_loop.inLoop()) { // Cannot wait for self: drain now
+          boolean blocked = _wblocked;
+          _wblocked=false;
+          drainUpstreamQ();
+          _wblocked |= blocked;
+          continue;
+        }
+        scheduleDrain();
+      }
+      else
+        LockSupport.unpark(_upstreamThread);
+      LockSupport.parkNanos(100*1000);
+    }
+    if(size != 0)
+      _qBytes.addAndGet(size);
+    if(_gen != gen) { // Queued after sockClose emptied the queue
+      ArrayList<Object> moved=null;
+      LongMap<String> t2t=null, t2st=null;
+      synchronized(_lock) {
+        if(_conState != 2) {
+          _pubStamp.set(null);
+          moved = purgeUpstreamQ();
+          t2t = _lostTid2topicM;
+          t2st = _lostTid2subtopicM;
+        }
+      }
+      if(moved != null)
+        moveToOutbox(_outbox, moved, t2t, t2st);
+      return true;
+    }
+    if(_loop != null)
+      scheduleDrain();
+    else if(_upstreamWaiting)
+      LockSupport.unpark(_upstreamThread);
+    return true;
+  }
+
+  // Empty the upstream queue of a closed connection. Called with
+  // _lock held. Returns the messages to move to the outbox, or null;
+  // the messages are journaled by the caller after releasing the lock.
+  private final ArrayList<Object> purgeUpstreamQ()
+  {
+    Outbox ob = _outbox;
+    boolean move = ob != null && ! ob.isDurable();
+    ArrayList<Object> moved=null;
+    Object o;
+    while((o = _upstreamQ.poll()) != null) {
+      int size = pubSize(o);
+      _qBytes.addAndGet(-size);
+      if(move && size != 0 && ! (o instanceof StreamFrame)) {
+        if(moved == null)
+          moved = new ArrayList<Object>();
+        moved.add(o);
+      }
+      else // Durable: resent from the journal
+        releaseFrames(o);
+    }
+    return moved;
+  }
+
+  // Dispose of an element removed from, or not added to, the upstream
+  // queue of a closed connection. Returns true if the element was
+  // moved to the outbox or is kept by a durable outbox.
+  private final boolean closedUpstream(Object o, int size,
+                                       LongMap<String> tid2topic,
+                                       LongMap<String> tid2subtopic)
+  {
+    Outbox ob = _outbox;
+    if(size != 0 && ob != null) {
+      if( ! ob.isDurable() )
+        return moveToOutbox(ob, o, tid2topic, tid2subtopic);
+      if( ! (o instanceof StreamFrame) ) { // Resent by sendOutbox
+        releaseFrames(o);
+        return true;
+      }
+    }
+    releaseFrames(o);
+    return false;
   }
 
-  private final void add2UpstreamQ(Runnable r)
+  // The capacity is approximate: concurrent producers may exceed it
+  // by a few messages. A message larger than the byte capacity is
+  // accepted when no other messages are queued.
+  private final boolean hasRoom(RingQ<Object> q, int size)
   {
-    synchronized(_lock) { _upstreamQ.add(r); }
-    synchronized(_upstreamThread) { _upstreamThread.notify(); }
+    long bytes = _qBytes.get();
+    return q.size() < _qMaxMsgs && (bytes == 0 || bytes+size <= _qMaxBytes);
+  }
+
+  // Queue a PUBLISH frame or the frames of a fragmented message, and
+  // apply the overflow policy if the upstream queue is full.
+  private final void queuePublish(Object o, int size) throws SmqException
+  {
+    int policy = _qPolicy;
+    if(policy != QUEUE_BLOCK) {
+      RingQ<Object> q = _upstreamQ;
+      while( ! hasRoom(q, size) ) {
+        if(policy == QUEUE_DROP_OLDEST) {
+          Object head = q.peek();
+          int headSize = pubSize(head);
+          if(headSize != 0 && q.pollIf(head)) {
+            _qBytes.addAndGet(-headSize);
+            dropped(head, headSize);
+            continue;
+          }
+          if(head == null)
+            continue;
+          // Head is a control message: drop the new message instead.
+        }
+        else if(policy == QUEUE_FAIL) {
+          releaseFrames(o);
+          _qRejected.incrementAndGet();
+          throw new SmqException(SmqException.QUEUE_FULL);
+        }
+        dropped(o, size);
+        return;
+      }
+    }
+    if(_metrics._timing && _pubStamp.get() == null) // Time this message
+      _pubStamp.compareAndSet(null, new PubStamp(o, System.nanoTime()));
+    if( ! add2UpstreamQ(o, size) )
+      throw new SmqException(SmqException.DISCONNECT);
+  }
+
+  private final void dropped(Object o, int size)
+  {
+    PubStamp ps = _pubStamp.get();
+    if(ps != null && ps.o == o)
+      _pubStamp.compareAndSet(ps, null);
+    releaseFrames(o);
+    _qDropped.incrementAndGet();
+    _qDroppedBytes.addAndGet(size);
+  }
+
+  private final void releaseFrames(Object o)
+  {
+    if(o instanceof byte[])
+      _bufPool.release((byte[])o);
+    else if(o instanceof StreamFrame)
+      _bufPool.release(((StreamFrame)o).frame);
+    else if(o instanceof byte[][]) {
+      for(byte[] b : (byte[][])o)
+        _bufPool.release(b);
+    }
+  }
+
+  // Returns the size of a queued PUBLISH frame or fragmented message,
+  // and zero for other queue elements.
+  private static final int pubSize(Object o)
+  {
+    if(o instanceof byte[]) {
+      byte[] b = (byte[])o;
+      if(b[2] != MSG_PUBLISH && b[2] != MSG_PUBFRAG)
+        return 0;
+      return ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+    }
+    if(o instanceof StreamFrame) {
+      byte[] b = ((StreamFrame)o).frame;
+      return ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+    }
+    if(o instanceof byte[][]) {
+      byte[] first = ((byte[][])o)[0];
+      if(first[2] != MSG_PUBLISH && first[2] != MSG_PUBFRAG)
+        return 0;
+      int size=0;
+      for(byte[] b : (byte[][])o)
+        size += ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+      return size;
+    }
+    return 0;
+  }
+
+  // EventLoop mode: drain the upstream queue in the event loop thread.
+  private final void scheduleDrain()
+  {
+    if( ! _nioScheduled.get() && _nioScheduled.compareAndSet(false, true) )
+      _loop.execute(_nioHandler);
   }
 
   private final void upstreamThreadFunc()
@@ -878,47 +2324,238 @@ public class SMQ
     for(;;) {
       if(_upstreamThread == null)
         break;
-      synchronized(_upstreamThread) {
-        try { _upstreamThread.wait(60*1000); }
-        catch(InterruptedException e) {continue;}
-        if(_conState == 2 && System.currentTimeMillis() >
-           (_pingTmo+_recTimeStamp)) {
-          if(_pingActive) {
-            long max=_pingTmo+_recTimeStamp+_pongRespTmo;
-            if(System.currentTimeMillis() > max) {
-              manageUnexpectedClose(new SmqException(SmqException.PONG_TMO));
-            }
-          }
-          else {
-            _pingActive=true;
-            try {add2UpstreamQ(new OutMsg(MSG_PING));}
-            catch(IOException ignore) {}
-          }
+      drainUpstreamQ();
+      if(checkPing())
+        continue;
+      // Producers unpark this thread only when _upstreamWaiting is set.
+      _upstreamWaiting=true;
+      if(_upstreamQ.isEmpty() && _upstreamThread != null)
+        LockSupport.parkNanos(this, 60L*1000*1000*1000);
+      _upstreamWaiting=false;
+    }
+    //System.out.println("Closing upstreamThreadFunc");
+  }
+
+  // Send a ping if no data was received for a while and close the
+  // connection if the broker does not respond. Returns true if a
+  // ping was queued.
+  private final boolean checkPing()
+  {
+    if(_conState == 2 && System.currentTimeMillis() >
+       (_pingTmo+_recTimeStamp)) {
+      if(_pingActive) {
+        long max=_pingTmo+_recTimeStamp+_pongRespTmo;
+        if(System.currentTimeMillis() > max) {
+          manageUnexpectedClose(new SmqException(SmqException.PONG_TMO));
         }
       }
-      for(;;) {
-        Runnable r=null;
-        synchronized(_lock) {
-          try { r=_upstreamQ.removeFirst(); }
-          catch(NoSuchElementException e) { break; }
+      else {
+        _pingActive=true;
+        try {add2UpstreamQ(new OutMsg(MSG_PING));}
+        catch(IOException ignore) {}
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Coalesce queued frames into _wbuf and write them to the socket
+  // using one write per batch. A batch is written when the byte
+  // budget is reached or when the queue is empty and the latency
+  // window expired.
+  private final void drainUpstreamQ()
+  {
+    int batchSize = _batchSize;
+    if(_wbuf == null || _wbuf.length != batchSize)
+      _wbuf = new byte[batchSize];
+    long deadline=0;
+    for(;;) {
+      if(_wblocked) // EventLoop mode: wait until socket is writable
+        break;
+      Object o=_upstreamQ.poll();
+      int size = pubSize(o);
+      if(size != 0) {
+        _qBytes.addAndGet(-size);
+        PubStamp ps = _pubStamp.get();
+        if(ps != null && ps.o == o) { // Recorded when written
+          _pubStampWrite = ps.time;
+          _pubStamp.set(null);
         }
-        if(r==null)
+      }
+      if(o == null) {
+        if(_wlen == 0)
           break;
-        r.run();
+        long wait = deadline - System.nanoTime();
+        if(wait <= 0 || _loop != null)
+          break;
+        _upstreamWaiting=true;
+        if(_upstreamQ.isEmpty())
+          LockSupport.parkNanos(this, wait);
+        _upstreamWaiting=false;
+        continue;
+      }
+      if(o instanceof byte[]) {
+        if(_wlen == 0)
+          deadline = System.nanoTime() + _batchLatency;
+        batchFrame((byte[])o);
+      }
+      else if(o instanceof byte[][]) {
+        if(_wlen == 0)
+          deadline = System.nanoTime() + _batchLatency;
+        for(byte[] b : (byte[][])o)
+          batchFrame(b);
+      }
+      else if(o instanceof StreamFrame) {
+        if(_wlen == 0)
+          deadline = System.nanoTime() + _batchLatency;
+        batchFrame(((StreamFrame)o).frame);
+      }
+      else {
+        flushUpstream();
+        ((Runnable)o).run();
       }
     }
-    //System.out.println("Closing upstreamThreadFunc");
+    flushUpstream();
+  }
+
+  // Add frame to the batch and release the frame's buffer.
+  private final void batchFrame(byte[] b)
+  {
+    int len = ((b[0] & 0xFF) << 8) | (b[1] & 0xFF);
+    _metrics.frameSent();
+    if(b[2] == MSG_PUBLISH)
+      _metrics.messageSent(getUnsignedInt(b, 3));
+    if(_wlen + len > _wbuf.length)
+      flushUpstream();
+    if(len > _wbuf.length)
+      writeUpstream(b, len);
+    else {
+      System.arraycopy(b, 0, _wbuf, _wlen, len);
+      _wlen += len;
+    }
+    _bufPool.release(b);
+  }
+
+  private final void flushUpstream()
+  {
+    if(_wlen != 0) {
+      writeUpstream(_wbuf, _wlen);
+      _wlen=0;
+    }
+    if(_pubStampWrite != 0) {
+      _metrics._pubLatency.record(System.nanoTime() - _pubStampWrite);
+      _pubStampWrite=0;
+    }
   }
 
+  private final void writeUpstream(byte[] b, int len)
+  {
+    _metrics.written(len);
+    SslChannel ch = _ch;
+    if(ch != null) {
+      try {
+        if( ! ch.write(b, 0, len) ) {
+          _wblocked=true;
+          SelectionKey key = _key;
+          if(key != null)
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+      }
+      catch(IOException e) { manageUnexpectedClose(e); }
+      return;
+    }
+    Socket sock = _sock;
+    if(sock != null) {
+      try { sock.getOutputStream().write(b, 0, len); }
+      catch(IOException e){ manageUnexpectedClose(e); }
+    }
+  }
+
+  // Write directly to the socket, bypassing the upstream queue.
+  private final void sendNow(byte[] b, int len) throws IOException
+  {
+    _metrics.written(len);
+    SslChannel ch = _ch;
+    if(ch != null)
+      ch.write(b, 0, len);
+    else {
+      Socket sock = _sock;
+      if(sock != null)
+        sock.getOutputStream().write(b, 0, len);
+    }
+  }
+
+  // EventLoop callbacks, used if the instance is managed by an EventLoop.
+  private class NioHandler implements EventLoop.Handler, Runnable
+  {
+    public void registered(SelectionKey key)
+    {
+      _key=key;
+      if(key == null)
+        manageUnexpectedClose(new ClosedChannelException());
+      else {
+        ioReady(key); // Data may already be buffered
+        run();
+      }
+    }
+
+    public void ioReady(SelectionKey key)
+    {
+      SslChannel ch = _ch;
+      FrameReader rd = _rd;
+      if(ch == null || rd == null)
+        return;
+      try {
+        if(_wblocked && ch.flush()) {
+          _wblocked=false;
+          key.interestOps(SelectionKey.OP_READ);
+          Outbox.Rec c = _obCommit;
+          Outbox ob = _outbox;
+          if(c != null && ob != null && ob.epoch() == c.epoch)
+            ob.commit(c);
+          _obCommit=null;
+          drainUpstreamQ();
+        }
+        while(_conState == 2 && rd.available())
+          dispatchDownstreamMsg();
+      }
+      catch(IOException e) { manageUnexpectedClose(e); }
+      catch(SmqException e) { manageUnexpectedClose(e); }
+      catch(RuntimeException e) { manageUnexpectedClose(e); }
+    }
+
+    public void run() // Drain the upstream queue
+    {
+      _nioScheduled.set(false);
+      try { drainUpstreamQ(); }
+      catch(RuntimeException e) { manageUnexpectedClose(e); }
+    }
+
+    public void timer(long now)
+    {
+      checkPing();
+    }
+
+    public void loopClosed()
+    {
+      manageUnexpectedClose(new IOException("EventLoop closed"));
+    }
+
+    public void failed(SelectionKey key, RuntimeException e)
+    {
+      if(key == _key) // Not replaced by a reconnect
+        manageUnexpectedClose(e);
+    }
+  };
+
   private final void downstreamThreadFunc()
   {
     for(;;) {
       if(_downstreamThread == null)
         break;
-      synchronized(_downstreamThread) {
-        try { _downstreamThread.wait(); }
-        catch(InterruptedException e) {continue;}
-      }
+      // Unparked by connect and close. Park/unpark, unlike wait/notify,
+      // does not pin the carrier thread when running as a virtual thread.
+      LockSupport.park(this);
       //System.out.println("Activating downstreamThreadFunc");
       if(_downstreamThread != null) {
         while(_conState == 2) {
@@ -935,14 +2572,49 @@ public class SMQ
 
   private final void sockClose()
   {
+    Outbox ob;
+    ArrayList<Object> moved;
+    LongMap<String> t2t=null, t2st=null;
     synchronized(_lock) {
       try { if(_sock != null) _sock.close(); }
       catch(IOException e) {}
       _sock=null;
-      _is=null;
+      if(_ch != null)
+        _ch.close();
+      _ch=null;
+      _key=null;
+      _wblocked=false;
+      _obCommit=null; // Not written: resent after the rewind
+      _rd=null;
+      _reasm=null;
       _conState=0;
+      _gen++;
       _pingActive=false;
-      _upstreamQ.clear();
+      _pubStamp.set(null);
+      _metrics.clearTopics();
+      ob = _outbox;
+      if(ob != null) {
+        ob.rewind(); // Resend the records not written to the socket
+        if(_tid2topicM.size() != 0) { // Names for publish(tid,...)
+          _lostTid2topicM = _tid2topicM.copy();
+          _lostTid2subtopicM = _tid2subtopicM.copy();
+        }
+        t2t = _lostTid2topicM; // Not modified, used after unlocking
+        t2st = _lostTid2subtopicM;
+      }
+      moved = purgeUpstreamQ();
+      if(_reconnector != null) { // Restored by replay when reconnected
+        // The names resolved or being resolved, e.g. by an incomplete
+        // replay. Merged: sockClose may run several times per outage,
+        // with the maps already cleared. Rejected names are removed
+        // by runOnAck.
+        _topicRec.addAll(_topic2tidM.keySet());
+        _topicRec.addAll(_createAckM.keySet());
+        _topicRec.addAll(_SubAckM.keySet());
+        _topicRec.remove("self");
+        _subtopicRec.addAll(_subtopic2tidM.keySet());
+        _subtopicRec.addAll(_createSubAckM.keySet());
+      }
       _createAckM.clear();
       _SubAckM.clear();
       _createSubAckM.clear();
@@ -950,17 +2622,65 @@ public class SMQ
       _subtopic2tidM.clear();
       _tid2topicM.clear();
       _tid2subtopicM.clear();
-      _callbackSubM.clear();
-      _callbackM.clear();
+      for(long key : _routeM.keys()) {
+        for(IntfOnMsg on : _routeM.get(key)) {
+          if(on instanceof StreamDelivery)
+            ((StreamDelivery)on).abort();
+        }
+      }
+      _routeM = new LongMap<IntfOnMsg[]>();
       _changeM.clear();
     }
+    if(moved != null) // Journaled without blocking the other threads
+      moveToOutbox(ob, moved, t2t, t2st);
+    // The pending acks were discarded: fail the futures waiting for them.
+    for(CompletableFuture<?> f : _pendingF)
+      f.completeExceptionally(new SmqException(SmqException.DISCONNECT));
   }
 
 
+  // sockClose: move the queued messages to the outbox, in order.
+  private final void moveToOutbox(Outbox ob, List<Object> moved,
+                                  LongMap<String> tid2topic,
+                                  LongMap<String> tid2subtopic)
+  {
+    synchronized(ob) {
+      for(Object o : moved)
+        moveToOutbox(ob, o, tid2topic, tid2subtopic);
+    }
+  }
+
+  // sockClose: move a queued message to the outbox. Frames queued by
+  // a PublishStream are dropped: the stream's preceding frames were
+  // written or dropped, and the remaining frames are not a message.
+  // Returns false if the message was dropped.
+  private final boolean moveToOutbox(Outbox ob, Object o,
+                                     LongMap<String> tid2topic,
+                                     LongMap<String> tid2subtopic)
+  {
+    boolean moved=false;
+    if(o instanceof StreamFrame) {
+      releaseFrames(o);
+      return false;
+    }
+    byte[][] frames = o instanceof byte[] ?
+      new byte[][] { (byte[])o } : (byte[][])o;
+    if(frames[0][2] == MSG_PUBLISH || o instanceof byte[][]) {
+      String topic = tid2topic.get(getUnsignedInt(frames[0], 3));
+      long subtid = getUnsignedInt(frames[0], 11);
+      String subtopic = subtid == 0 ? null : tid2subtopic.get(subtid);
+      if(topic != null && (subtid == 0 || subtopic != null))
+        moved = ob.append(topic, subtopic, frames);
+    }
+    releaseFrames(o);
+    return moved;
+  }
+
   private final short dispatchDownstreamMsg() throws SmqException
   {
     long tid;
-    int len = readUnsignedShort();
+    int len = readFrame();
+    _metrics.frameReceived(len);
     short msgType = (short)readUnsignedByte();
     len -= 3;
     //System.out.println("MSG : "+msgType);
@@ -997,11 +2717,22 @@ public class SMQ
       break;
 
     case MSG_PUBLISH:
+    case MSG_PUBFRAG:
       tid=readUnsignedInt();
       long ptid=readUnsignedInt();
       long subtid=readUnsignedInt();
       len -= 12;
-      runOnMsg(ptid,tid,subtid, len > 0 ? readBytes(len) : null);
+      FrameReader rd = _rd;
+      Reassembler ra = _reasm;
+      if(rd == null || ra == null)
+        break;
+      if(len < 0)
+        len = 0;
+      if(msgType == MSG_PUBLISH && ra.isEmpty()) // Not fragmented
+        runOnMsg(ptid,tid,subtid, rd.buf, rd.pos, len);
+      else
+        runOnFrag(ra, msgType == MSG_PUBLISH, ptid,tid,subtid,
+                  rd.buf, rd.pos, len);
       break;
 
     case MSG_DISCONNECT:
@@ -1063,38 +2794,50 @@ public class SMQ
     }
   }
 
-  private final int readUnsignedShort() throws SmqException
+  // Read the next frame into the receive buffer and return its length.
+  private final int readFrame() throws SmqException
   {
-    if(_is == null) return 0; //Closed
-    try { return _is.readUnsignedShort(); }
+    FrameReader rd = _rd;
+    if(rd == null) return 0; //Closed
+    try { return rd.readFrame(); }
     catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
     return 0; //Make compiler happy
   }
 
   private final int readUnsignedByte() throws SmqException
   {
-    if(_is == null) return 0; //Closed
-    try { return _is.readUnsignedByte(); }
+    FrameReader rd = _rd;
+    if(rd == null) return 0; //Closed
+    try { return rd.readUnsignedByte(); }
     catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
     return 0; //Make compiler happy
   }
 
   private final long readUnsignedInt() throws SmqException
   {
-    if(_is == null) return 0; //Closed
-    try { return _is.readInt() & 0xFFFFFFFFL; }
+    FrameReader rd = _rd;
+    if(rd == null) return 0; //Closed
+    try { return rd.readUnsignedInt(); }
     catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
     return 0; //Make compiler happy
   }
 
   private final String readString(int len) throws SmqException
   {
-    if(_is == null) return ""; //Closed
-    try { return new String(readBytes(len), "UTF-8"); }
-    catch(UnsupportedEncodingException e) { doEx(SmqException.DISCONNECT,e); }
+    FrameReader rd = _rd;
+    if(rd == null) return ""; //Closed
+    try { return rd.readString(len); }
+    catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
     return null; //Make compiler happy
   }
 
+  // Not connected, or connecting when the call requires otherwise.
+  // Does not close the socket, which may be opened by the Reconnector.
+  private static final void invalidState() throws SmqException
+  {
+    throw new SmqException(SmqException.INVALID_STATE);
+  }
+
   private final void doEx(short reason) throws SmqException
   {
     sockClose();
@@ -1119,28 +2862,248 @@ public class SMQ
       _isRunning=false;
     }
     if(isRunning) {
+      Reconnector r = _reconnector;
+      if(r != null && ! _closed && retryable(e)) {
+        sockClose();
+        IntfOnReconnect l = _onReconnect;
+        if(l != null)
+          smqOnDisconnect(l, e);
+        r.start(_threadFactory);
+      }
+      else {
+        sockClose();
+        smqOnClose(_onClose, e);
+      }
+    }
+  }
+
+  // Returns true for errors caused by network and broker outages.
+  private static final boolean retryable(SmqException e)
+  {
+    switch(e.getReason()) {
+      case SmqException.SERVER_UNAVAILABLE:
+      case SmqException.CANNOT_CONNECT:
+      case SmqException.DISCONNECT:
+      case SmqException.NON_200_RESPONSE_CODE:
+      case SmqException.PONG_TMO:
+      case SmqException.SERVER_DISCONNECT: // E.g. the broker is restarting
+        return true;
+    }
+    return false;
+  }
+
+  // Called by the Reconnector thread. Returns true when done: when
+  // connected, closed, or when giving up.
+  final boolean reconnectAttempt(int attempt, boolean last)
+  {
+    if(_closed)
+      return true;
+    _reconnecting=true;
+    try { connect(_uid, _credentials, _info); }
+    catch(SmqException e) {
+      _reconnecting=false;
+      if(_closed)
+        return true;
+      if(last || ! retryable(e)) {
+        smqOnClose(_onClose, e);
+        return true;
+      }
+      return false;
+    }
+    _reconnecting=false;
+    if(_closed) {
       sockClose();
-      smqOnClose(_onClose, e);
+      return true;
+    }
+    IntfOnReconnect l = _onReconnect;
+    if(l != null)
+      smqOnReconnect(l, attempt);
+    replay();
+    sendOutbox();
+    return true;
+  }
+
+  // Start the outbox sender thread, or wake it if idle. The thread
+  // runs until the SMQ instance is closed.
+  private final void sendOutbox()
+  {
+    final Outbox ob = _outbox;
+    if(ob == null || _conState != 2)
+      return;
+    if(_outboxStarted.compareAndSet(false, true)) {
+      Runnable r = new Runnable() {
+          public void run() {
+            outboxThread(ob);
+          }
+        };
+      Thread t = newThread(_threadFactory, r);
+      _outboxThread=t;
+      t.start();
+    }
+    else if(_outboxIdle)
+      LockSupport.unpark(_outboxThread);
+  }
+
+  // The outbox sender thread: parks while not connected or when all
+  // records are sent. The idle flag is set before checking for
+  // records and a publisher reads the flag after appending a record,
+  // thus a wakeup is not lost.
+  private final void outboxThread(Outbox ob)
+  {
+    while( ! _closed ) {
+      if(_conState == 2 && ob.hasNext())
+        drainOutbox(ob);
+      _outboxIdle=true;
+      if( ! _closed && ! (_conState == 2 && ob.hasNext()) )
+        LockSupport.park(this);
+      _outboxIdle=false;
     }
   }
 
-  private final byte[] readBytes(int len) throws SmqException
+  // Send the journaled messages while connected. The topic and
+  // subtopic names are resolved, the frames are patched with the
+  // current IDs, and the frames are queued in batches. A batch is a
+  // Runnable that writes the frames and commits the records: the
+  // records are committed when written to the socket. A batch holds
+  // whole messages, from the first PUBFRAG through the PUBLISH, thus
+  // a message is written without other frames in between and a
+  // rewind never resends the tail of a message.
+  private final void drainOutbox(final Outbox ob)
   {
-    if(_is == null) return null; //Closed
+    int epoch = ob.epoch(); // Changed by sockClose
+    while(_conState == 2 && ! _closed) {
+      final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+      Outbox.Rec last=null;
+      int size=0;
+      boolean msgEnd=true;
+      Outbox.Rec r;
+      while((size < _batchSize || ! msgEnd) &&
+            (r = ob.next(epoch)) != null) {
+        long tid = topic2tid(r.topic);
+        long subtid = r.subtopic == null ? 0 : subtopic2tid(r.subtopic);
+        try {
+          if(tid == 0) {
+            TopicAck ack = createAsync(r.topic).get();
+            tid = ack.isAccepted() ? ack.getTid() : 0;
+          }
+          if(subtid == 0 && r.subtopic != null) {
+            TopicAck ack = createsubAsync(r.subtopic).get();
+            subtid = ack.getSubTid();
+            if( ! ack.isAccepted() ) tid=0;
+          }
+        }
+        catch(Exception e) { return; } // Closed: rewound by sockClose
+        if(tid != 0) { // Else dropped: name rejected by the broker
+          putUnsignedInt(r.frame, 3, tid);
+          putUnsignedInt(r.frame, 7, _etid);
+          putUnsignedInt(r.frame, 11, subtid);
+          batch.add(r.frame);
+          size += r.frame.length;
+        }
+        last=r;
+        msgEnd = r.frame[2] != MSG_PUBFRAG;
+      }
+      if(last == null)
+        return;
+      final Outbox.Rec commit = last;
+      while(_conState == 2 && _upstreamQ.size() >= STREAM_MAX_QUEUED &&
+            ! (_loop != null && _loop.inLoop())) {
+        if(_loop != null)
+          scheduleDrain();
+        else
+          LockSupport.unpark(_upstreamThread);
+        LockSupport.parkNanos(100*1000);
+      }
+      add2UpstreamQ(new Runnable() {
+          public void run() {
+            if(ob.epoch() != commit.epoch) // Queued prior to a reconnect
+              return;
+            for(byte[] b : batch)
+              batchFrame(b);
+            flushUpstream();
+            if(_conState == 2) {
+              if(_wblocked) // Buffered by the SslChannel: commit when flushed
+                _obCommit=commit;
+              else
+                ob.commit(commit);
+            }
+          }
+        });
+    }
+  }
+
+  // Restore the subscriptions, observers, and topic names after a
+  // reconnect. All requests are sent in one batch.
+  private final void replay()
+  {
+    List<TopicSpec> subs;
+    List<String> topics;
+    List<String> subtopics;
+    Map<String,ArrayList<IntfOnChange>> obs;
+    synchronized(_lock) {
+      subs = new ArrayList<TopicSpec>(_subRec.values());
+      topics = new ArrayList<String>(_topicRec);
+      subtopics = new ArrayList<String>(_subtopicRec);
+      obs = new LinkedHashMap<String,ArrayList<IntfOnChange>>(_obsRec);
+    }
+    Set<String> done = new HashSet<String>();
+    Set<String> doneSub = new HashSet<String>();
+    List<byte[]> frames = new ArrayList<byte[]>();
     try {
-      byte[] b = new byte[len];
-      int offset=0;
-      while(len != 0) {
-        int n = _is.read(b, offset, len);
-        if(n < 1) doEx(SmqException.DISCONNECT);
-        offset += n;
-        len -= n;
-        assert len >= 0;
+      for(TopicSpec spec : subs) {
+        subscribe(spec, frames, null);
+        done.add(spec.getTopic());
+        if(spec.getSubtopic() != null)
+          doneSub.add(spec.getSubtopic());
+      }
+      for(Map.Entry<String,ArrayList<IntfOnChange>> e : obs.entrySet()) {
+        replayCreate(e.getKey(), e.getValue(), frames);
+        done.add(e.getKey());
+      }
+      for(String topic : topics) {
+        if(done.add(topic))
+          replayCreate(topic, null, frames);
+      }
+      for(final String subtopic : subtopics) {
+        if( ! doneSub.add(subtopic) )
+          continue;
+        OnMsgAck action = new OnMsgAck() {
+            public void action(boolean accepted, String subtopic2, long tid) {
+              if(accepted)
+                addSubtopic(subtopic, tid);
+            }
+          };
+        if(add2AckM(_createSubAckM, subtopic, action) == false)
+          frames.add(new OutMsg(MSG_CREATESUB,subtopic).encode());
       }
-      return b; 
     }
-    catch(IOException e) { doEx(SmqException.DISCONNECT,e); }
-    return null; //Make compiler happy
+    catch(IOException e) {}
+    if(frames.size() != 0)
+      add2UpstreamQ(frames.toArray(new byte[frames.size()][]), 0);
+  }
+
+  // replay: resolve a topic name and observe the topic if observers
+  // is not null.
+  private final void replayCreate(final String topic,
+                                  final List<IntfOnChange> observers,
+                                  List<byte[]> frames) throws IOException
+  {
+    OnMsgAck action = new OnMsgAck() {
+        public void action(boolean accepted, String topic2, long tid) {
+          if(accepted) {
+            addTopic(topic, tid);
+            if(observers != null) {
+              try {
+                for(IntfOnChange ch : observers)
+                  observe(tid, ch);
+              }
+              catch(SmqException ignore) {}
+            }
+          }
+        }
+      };
+    if(add2AckM(_createAckM, topic, action) == false)
+      frames.add(new OutMsg(MSG_CREATE,topic).encode());
   }
 
   private final boolean add2AckM(Map<String, LinkedList<OnMsgAck>> onAck,
@@ -1150,7 +3113,7 @@ public class SMQ
       boolean found;
       LinkedList<OnMsgAck> lr = onAck.get(topic);
       if(lr == null) {
-        lr = new LinkedList<OnMsgAck>();
+        lr = new AckList();
         onAck.put(topic, lr);
         found=false;
       }
@@ -1162,47 +3125,115 @@ public class SMQ
     }
   }
 
-  // Lookup key in Map and call the user callback smqOnMsg if found.
-  // Used by runOnMsg below
-  private boolean runOnMsg(long key,Map<Long,LinkedList<IntfOnMsg>> map,Msg msg)
+  // Returns the callbacks for tid/subtid: the subtopic callbacks if
+  // found, otherwise the topic's "catch all" callbacks.
+  private final IntfOnMsg[] routes(long tid, long subtid)
   {
+    LongMap<IntfOnMsg[]> m = _routeM; // Immutable snapshot, no lock
     IntfOnMsg[] a = null;
-    synchronized(_lock) {
-      LinkedList<IntfOnMsg> l = map.get(key);
-      if(l != null)
-        a = l.toArray(new IntfOnMsg[0]);
-    }
-    //System.out.println("runOnMsg2 key "+key+", "+a);
+    if(subtid != 0)
+      a = m.get(routeKey(tid, subtid));
+    if(a == null)
+      a = m.get(routeKey(tid, 0));
+    return a;
+  }
+
+  // Returns true if the callbacks include a non stream subscriber.
+  private static final boolean hasPlain(IntfOnMsg[] a)
+  {
     if(a != null) {
-      for(IntfOnMsg on : a)
-        smqOnMsg(on, msg);
-      return true;
+      for(IntfOnMsg on : a) {
+        if( ! (on instanceof StreamDelivery) )
+          return true;
+      }
     }
     return false;
   }
 
   // MSG_PUBLISH -> execute callback 'smqOnMsg' if found for tid/subtid
-  private final void runOnMsg(long ptid, long tid, long subtid, byte[] data)
+  private final void runOnMsg(long ptid, long tid, long subtid,
+                              byte[] buf, int off, int len)
   {
-    boolean found=false;
-    Msg msg = new Msg(ptid, tid, subtid, data);
-    if(subtid != 0) {
-      Map<Long,LinkedList<IntfOnMsg>> m = null;
-      synchronized(_lock) {
-        m = _callbackSubM.get(tid);
+    runOnMsg(ptid,tid,subtid, buf, off, len, false, -1, TO_ALL);
+  }
+
+  // Fragment offset -1: complete message. The callbacks are filtered
+  // by 'to': TO_ALL, TO_STREAMS, or TO_PLAIN. Fragments are passed
+  // directly to stream subscribers since the fragments must be
+  // delivered in order.
+  private final void runOnMsg(long ptid, long tid, long subtid,
+                              byte[] buf, int off, int len,
+                              boolean last, long fragOffset, int to)
+  {
+    IntfOnMsg[] a = routes(tid, subtid);
+    //System.out.println("runOnMsg tid "+tid+", "+a);
+    boolean complete = to != TO_PLAIN && (fragOffset < 0 || last);
+    if(a == null) {
+      if(complete)
+        _metrics.undeliverable();
+      IntfOnMsg dl = _deadLetter;
+      if(dl != null && to != TO_PLAIN) {
+        Msg msg = _rmsg;
+        msg.set(ptid, tid, subtid, buf, off, len);
+        if(fragOffset >= 0)
+          msg.setFragment(last, fragOffset);
+        smqOnMsg(dl, msg);
       }
-      if(m != null)
-        found=runOnMsg(subtid, m, msg);
-      //System.out.println("runOnMsg subtid "+tid+", "+subtid+", "+m+", "+found);
+      return;
     }
-    if(found == false) {
-      if( ! runOnMsg(tid, _callbackM, msg) ) {
-        System.out.println("Dropping msg "+tid);
+    if(complete)
+      _metrics.messageReceived(tid);
+    Msg msg = _rmsg; // Reused: a view into the receive buffer
+    msg.set(ptid, tid, subtid, buf, off, len);
+    if(fragOffset >= 0)
+      msg.setFragment(last, fragOffset);
+    for(IntfOnMsg on : a) {
+      if(on instanceof StreamDelivery) {
+        if(to == TO_PLAIN)
+          continue;
+        if(fragOffset >= 0)
+          on.smqOnMsg(msg);
+        else
+          smqOnMsg(on, msg);
       }
+      else if(to != TO_STREAMS)
+        smqOnMsg(on, msg);
     }
   }
 
 
+  // MSG_PUBFRAG, or MSG_PUBLISH ending a fragment sequence: buffer
+  // the fragment or deliver it as is if fragment delivery is enabled.
+  // Stream subscribers always receive the fragments as they arrive,
+  // and fragments are buffered only if there are other subscribers.
+  private final void runOnFrag(Reassembler ra, boolean last,
+                               long ptid, long tid, long subtid,
+                               byte[] buf, int off, int len)
+  {
+    long key = Reassembler.key(ptid, tid);
+    Reassembler.Seq s = ra.get(key);
+    if(s == null) {
+      if(last) { // Not fragmented
+        runOnMsg(ptid,tid,subtid, buf, off, len);
+        return;
+      }
+      s = ra.add(key, subtid, buf, off, len,
+                 ! _fragDelivery && hasPlain(routes(tid, subtid)));
+    }
+    else
+      ra.add(key, subtid, buf, off, len, s.buffered);
+    if(last)
+      ra.remove(key);
+    long fragOffset = s.offset-len;
+    if( ! s.buffered ) {
+      runOnMsg(ptid,tid,s.subtid, buf, off, len, last, fragOffset, TO_ALL);
+      return;
+    }
+    runOnMsg(ptid,tid,s.subtid, buf, off, len, last, fragOffset, TO_STREAMS);
+    if(last && ! s.dropped) // Dropped: exceeded the reassembly limits
+      runOnMsg(ptid,tid,s.subtid, s.buf,0,(int)s.offset, false,-1, TO_PLAIN);
+  }
+
   private final void runOnAck(Map<String, LinkedList<OnMsgAck>> onAck,
                               boolean accepted, String topic, long tid)
   {
@@ -1211,23 +3242,59 @@ public class SMQ
       lr = onAck.get(topic);
       if(lr != null)
         onAck.remove(topic);
+      if( ! accepted ) // Not restored by replay
+        (onAck == _createSubAckM ? _subtopicRec : _topicRec).remove(topic);
     }
     if(lr != null) {
+      if(_metrics._timing && lr instanceof AckList)
+        _metrics._ackRtt.record(System.nanoTime() - ((AckList)lr).sent);
       for(OnMsgAck ack : lr)
         ack.action(accepted,topic,tid);
     }
   }
 
+  // The callbacks waiting for an ack and when the request was sent.
+  @SuppressWarnings("serial")
+  private static final class AckList extends LinkedList<OnMsgAck>
+  {
+    final long sent = System.nanoTime();
+  };
 
+  // An upstream queue element: a frame queued by a PublishStream.
+  private static final class StreamFrame
+  {
+    StreamFrame(byte[] frame)
+    {
+      this.frame=frame;
+    }
+
+    final byte[] frame;
+  };
+
+  // The message timed by the publish latency histogram.
+  private static final class PubStamp
+  {
+    PubStamp(Object o, long time)
+    {
+      this.o=o;
+      this.time=time;
+    }
+
+    final Object o; // The upstream queue element
+    final long time;
+  };
+
+
+  // Encodes a message directly into a pooled buffer. The first two
+  // bytes are reserved for the frame length, which is set by encode().
   private class OutMsg {
-    ByteArrayOutputStream baos;
-    DataOutputStream dos;
+    byte[] buf;
+    int pos;
     public OutMsg(int msgType) throws IOException
     {
-      baos = new ByteArrayOutputStream();
-      dos = new DataOutputStream(baos); 
-      dos.writeShort(0); // Space for size
-      dos.writeByte(msgType);
+      buf = _bufPool.get(64);
+      buf[2] = (byte)msgType;
+      pos=3;
     }
     public OutMsg(int msgType, String s) throws IOException
     {
@@ -1235,9 +3302,37 @@ public class SMQ
       writeString(s, false);
     }
 
+    private final void ensure(int size) throws IOException
+    {
+      size += pos;
+      if(size > buf.length) {
+        if(size > 0xFFFF)
+          throw new IOException("Message overflow");
+        byte[] b = _bufPool.get(size);
+        System.arraycopy(buf, 0, b, 0, pos);
+        _bufPool.release(buf);
+        buf=b;
+      }
+    }
+
+    final void writeByte(int v) throws IOException
+    {
+      ensure(1);
+      buf[pos++] = (byte)v;
+    }
+
     final void writeUnsignedInt(long i) throws IOException
     {
-      dos.writeInt((int)i);
+      ensure(4);
+      putUnsignedInt(buf, pos, i);
+      pos += 4;
+    }
+
+    final void write(byte[] b, int off, int len) throws IOException
+    {
+      ensure(len);
+      System.arraycopy(b, off, buf, pos, len);
+      pos += len;
     }
 
     final void writeString(String s, boolean setLen) throws IOException
@@ -1245,28 +3340,84 @@ public class SMQ
       if(s != null) {
         byte[] bc = s.getBytes("UTF-8");
         if(setLen)
-          dos.writeByte(bc.length);
-        dos.write(bc);
+          writeByte(bc.length);
+        write(bc, 0, bc.length);
       }
       else if(setLen)
-        dos.writeByte(0);
+        writeByte(0);
     }
 
-    final void send(Socket sock) throws IOException
+    final byte[] encode()
     {
-      if(sock == null)
-        return;
-      dos.flush();
-      byte[] b = baos.toByteArray();
-      int len = b.length;
-      if(len > 0xFFFF)
-        throw new IOException("Message overflow");
-      b[0] = (byte)(len >> 8);
-      b[1] = (byte)len;
-      sock.getOutputStream().write(b);
+      buf[0] = (byte)(pos >> 8);
+      buf[1] = (byte)pos;
+      return buf;
+    }
+
+    final void send() throws IOException
+    {
+      sendNow(encode(), pos);
+      _bufPool.release(buf);
     }
   };
 
+  // Hooks used by the benchmarks in bench/RTL/SMQ: the hot paths are
+  // measured without a broker connection.
+
+  // Encode a control message, e.g. MSG_CREATE, into a pooled buffer.
+  final byte[] benchEncode(int msgType, String topic) throws IOException
+  {
+    return new OutMsg(msgType, topic).encode();
+  }
+
+  final byte[] benchEncodePublish(long tid, long subtid,
+                                  byte[] b, int off, int len)
+  {
+    return encodePub(MSG_PUBLISH, tid, subtid, b, off, len);
+  }
+
+  final void benchRelease(byte[] frame)
+  {
+    _bufPool.release(frame);
+  }
+
+  // Read the frames from the stream as if connected.
+  final void benchAttach(InputStream in)
+  {
+    _rd = new FrameReader(in, _rbufSize);
+    _reasm = new Reassembler(_maxMsgSize, _maxFragTotal, _metrics);
+    _conState=2;
+  }
+
+  final short benchDispatch() throws SmqException
+  {
+    return dispatchDownstreamMsg();
+  }
+
+  // Route topic IDs 1 to n to the callback.
+  final void benchRoutes(int n, IntfOnMsg onMsg)
+  {
+    LongMap<IntfOnMsg[]> m = new LongMap<IntfOnMsg[]>(n);
+    IntfOnMsg[] a = new IntfOnMsg[] { onMsg };
+    for(long tid=1 ; tid <= n ; tid++)
+      m.put(routeKey(tid, 0), a);
+    _routeM = m;
+  }
+
+  private static final long getUnsignedInt(byte[] b, int pos)
+  {
+    return ((long)(b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16) |
+      ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+  }
+
+  private static final void putUnsignedInt(byte[] b, int pos, long i)
+  {
+    b[pos]   = (byte)(i >> 24);
+    b[pos+1] = (byte)(i >> 16);
+    b[pos+2] = (byte)(i >> 8);
+    b[pos+3] = (byte)i;
+  }
+
   interface OnMsgAck
   {
     public void action(boolean accepted, String topic, long tid);
@@ -1275,15 +3426,45 @@ public class SMQ
   private URL _smqUrl;
   private Proxy _proxy;
   private TrustManager[] _trustMgr;
+  private volatile SSLContext _sslCtx; // Null: use the shared context
+  // The shared contexts, by TrustManager set (array identity).
+  private static final Map<TrustManager[],SSLContext> _sslCtxM =
+    new WeakHashMap<TrustManager[],SSLContext>();
   private HostnameVerifier _hostVerifier;
-  private Socket _sock=null;
-  private DataInputStream _is;
+  private volatile Socket _sock=null;
+  private final EventLoop _loop; // Null if not managed by an EventLoop
+  private final ThreadFactory _threadFactory; // May be null
+  private volatile SslChannel _ch=null; // Used with EventLoop
+  private volatile SelectionKey _key=null;
+  private volatile boolean _wblocked=false; // Socket not writable
+  // EventLoop mode: the outbox records to commit when the frames
+  // buffered by the SslChannel are written to the socket.
+  private volatile Outbox.Rec _obCommit=null;
+  private final AtomicBoolean _nioScheduled = new AtomicBoolean();
+  private final NioHandler _nioHandler = new NioHandler();
+  private volatile boolean _closed=false;
+  private volatile Dispatcher _dispatcher=null; // Null: run callbacks inline
+  private volatile IntfOnMsg _deadLetter=null;
+  private volatile FrameReader _rd;
+  private int _rbufSize=0xFFFF;
+  private final Msg _rmsg = new Msg(); // Downstream thread only
+  private volatile Reassembler _reasm; // Created in init
+  private int _maxMsgSize=0x400000;
+  private int _maxFragTotal=0x1000000;
+  private volatile boolean _fragDelivery=false;
   private long _rand;
   private String _ipAddr;
-  private short _conState=0; // 0: not connected, 1: init, 2: connected.
+  private volatile short _conState=0; // 0: not connected, 1: init, 2: connected.
   private long _etid=0;
-  private Thread _upstreamThread=null;
-  private Thread _downstreamThread=null;
+  private volatile Thread _upstreamThread=null;
+  private volatile boolean _upstreamWaiting=false;
+  private volatile int _batchSize=16384;
+  private volatile long _batchLatency=0; // Nanoseconds
+  private volatile BufPool _bufPool =
+    new BufPool(BufPool.DEFAULT_SIZES, 64);
+  private byte[] _wbuf; // Upstream batch buffer, upstream thread only
+  private int _wlen=0;
+  private volatile Thread _downstreamThread=null;
   // Set to false in init,manageUnexpectedClose and true at end of connect.
   private boolean _isRunning=false;
   private Object _lock;
@@ -1291,28 +3472,90 @@ public class SMQ
   private long _recTimeStamp=0;
   private boolean _pingActive=false;
 
-  private LinkedList<Runnable> _upstreamQ = new LinkedList<Runnable>();
+  private volatile RingQ<Object> _upstreamQ =
+    new RingQ<Object>(UPSTREAMQ_SIZE + UPSTREAMQ_CTRL);
+  private volatile int _qMaxMsgs=UPSTREAMQ_SIZE;
+  private volatile long _qMaxBytes=0x1000000;
+  private volatile int _qPolicy=QUEUE_BLOCK;
+  private final AtomicLong _qBytes = new AtomicLong(); // Queued PUBLISH bytes
+  private final AtomicLong _qDropped = new AtomicLong();
+  private final AtomicLong _qDroppedBytes = new AtomicLong();
+  private final AtomicLong _qRejected = new AtomicLong();
+  private final Metrics _metrics = new Metrics(this);
+  private final AtomicReference<PubStamp> _pubStamp =
+    new AtomicReference<PubStamp>();
+  private long _pubStampWrite=0; // Upstream thread: batched PubStamp.time
   private Map<String,LinkedList<OnMsgAck>> _createAckM = // MSG_CREATEACK
     new HashMap<String,LinkedList<OnMsgAck>>();
   private Map<String,LinkedList<OnMsgAck>> _SubAckM = // MSG_SUBACK
     new HashMap<String,LinkedList<OnMsgAck>>();
   private Map<String,LinkedList<OnMsgAck>> _createSubAckM = // MSG_CREATESUBACK
     new HashMap<String,LinkedList<OnMsgAck>>();
+  // Automatic reconnect: the session, replayed when reconnected.
+  private volatile Reconnector _reconnector=null;
+  private volatile IntfOnReconnect _onReconnect=null;
+  private volatile boolean _reconnecting=false; // Reconnector thread
+  private byte[] _uid;
+  private String _credentials;
+  private String _info;
+  private final Map<String,TopicSpec> _subRec = // Key: recKey()
+    new LinkedHashMap<String,TopicSpec>();
+  private final Map<String,ArrayList<IntfOnChange>> _obsRec =
+    new LinkedHashMap<String,ArrayList<IntfOnChange>>();
+  private final Set<String> _topicRec = new LinkedHashSet<String>();
+  private final Set<String> _subtopicRec = new LinkedHashSet<String>();
+  private volatile TopicCache _topicCache=null;
+  private volatile int _gen=0; // See generation()
+  private final ConcurrentHashMap<String,Topic> _topicH =
+    new ConcurrentHashMap<String,Topic>();
+  // Revalidation callbacks, remove the names rejected by the broker.
+  private final IntfOnCreateAck _cacheAck = new IntfOnCreateAck() {
+      public void smqOnCreateAck(boolean accepted, String topic, long tid,
+                                 String subtopic, long subtid) {
+        TopicCache tc = _topicCache;
+        if( ! accepted && tc != null)
+          tc.remove(false, topic);
+      }
+    };
+  private final IntfOnCreatsubeAck _cacheSubAck = new IntfOnCreatsubeAck() {
+      public void smqOnCreatesubAck(boolean accepted, String subtopic,
+                                    long subtid) {
+        TopicCache tc = _topicCache;
+        if( ! accepted && tc != null)
+          tc.remove(true, subtopic);
+      }
+    };
+  // Outbox: journal for messages published when not connected.
+  private volatile Outbox _outbox=null;
+  private final AtomicBoolean _outboxStarted = new AtomicBoolean();
+  private volatile Thread _outboxThread=null;
+  private volatile boolean _outboxIdle=false; // Parked, see outboxThread
+  // The topic names prior to the disconnect, used by publish(tid,...)
+  private LongMap<String> _lostTid2topicM = new LongMap<String>();
+  private LongMap<String> _lostTid2subtopicM = new LongMap<String>();
+  private final Set<CompletableFuture<?>> _pendingF =
+    ConcurrentHashMap.<CompletableFuture<?>>newKeySet();
   private Map<String,Long> _topic2tidM = new HashMap<String,Long>();
   private Map<String,Long> _subtopic2tidM = new HashMap<String,Long>();
-  private Map<Long,String> _tid2topicM = new HashMap<Long,String>();
-  private Map<Long,String> _tid2subtopicM = new HashMap<Long,String>();
+  private LongMap<String> _tid2topicM = new LongMap<String>();
+  private LongMap<String> _tid2subtopicM = new LongMap<String>();
 
-  private Map<Long,Map<Long,LinkedList<IntfOnMsg>>> _callbackSubM =
-    new HashMap<Long,Map<Long,LinkedList<IntfOnMsg>>>();
-  private Map<Long,LinkedList<IntfOnMsg>> _callbackM =
-    new HashMap<Long,LinkedList<IntfOnMsg>>();
-  private Map<Long,LinkedList<IntfOnChange>> _changeM =
-    new HashMap<Long,LinkedList<IntfOnChange>>();
+  // Message callbacks, key: routeKey(tid,subtid). Copy-on-write:
+  // replaced, never modified, when subscriptions change.
+  private volatile LongMap<IntfOnMsg[]> _routeM = new LongMap<IntfOnMsg[]>();
+  private LongMap<LinkedList<IntfOnChange>> _changeM =
+    new LongMap<LinkedList<IntfOnChange>>();
 
   private static final short _version       = 1;
   private static final long _pingTmo        = 20 * 60 * 1000;
   private static final long _pongRespTmo    = 20 * 1000;
+  private static final int UPSTREAMQ_SIZE   = 4096;
+  private static final int UPSTREAMQ_CTRL   = 256; // Room for control msgs
+  static final int MAX_PAYLOAD              = 0xFFFF-15; // PUBLISH frame
+  private static final int STREAM_MAX_QUEUED = 16;
+  private static final int TO_ALL = 0; // runOnMsg callback filter
+  private static final int TO_STREAMS = 1;
+  private static final int TO_PLAIN = 2;
 
   private static final short MSG_INIT         = 1;
   private static final short MSG_CONNECT      = 2;
@@ -9,9 +9,10 @@ import javax.net.ssl.*;
 class SSLSocketFactoryWrapper extends SSLSocketFactory
 {
    
-  public SSLSocketFactoryWrapper(SSLSocketFactory factory)
+  public SSLSocketFactoryWrapper(SSLSocketFactory factory, Metrics metrics)
   {
     _df = factory;
+    _metrics = metrics;
   }
 
 
@@ -63,12 +64,26 @@ class SSLSocketFactoryWrapper extends SSLSocketFactory
     return _socket;
   }
 
+  // Measure the handshake, which is started by HttpsURLConnection.
+  // The time includes the TCP connect for an unconnected socket.
   private Socket setup(Socket s)
   {
     _socket = s;
+    if(_metrics != null && s instanceof SSLSocket) {
+      final long start = System.nanoTime();
+      final long startMs = System.currentTimeMillis();
+      ((SSLSocket)s).addHandshakeCompletedListener(
+        new HandshakeCompletedListener() {
+          public void handshakeCompleted(HandshakeCompletedEvent e) {
+            _metrics.handshake(System.nanoTime() - start,
+                               e.getSession().getCreationTime() < startMs);
+          }
+        });
+    }
     return s;
   }
 
   private Socket _socket=null;
+  private final Metrics _metrics; // May be null
   SSLSocketFactory _df;
 }
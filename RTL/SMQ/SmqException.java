@@ -48,6 +48,7 @@ public class SmqException extends Exception
   public static final short SSL_NOT_SUPPORTED          = 108;
   public static final short URL_NOT_A_BROKER           = 109;
   public static final short INVALID_ARG                = 110;
+  public static final short QUEUE_FULL                 = 111;
 
 
   private short _reason=0;
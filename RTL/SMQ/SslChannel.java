@@ -0,0 +1,237 @@
+package RTL.SMQ;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/** TLS over a SocketChannel using an SSLEngine. The channel works in
+    blocking mode, which is used when connecting to the broker, and
+    in non blocking mode, which is used when the connection is
+    managed by an {@link EventLoop}. In non blocking mode, read
+    returns zero if no data is available and write returns false if
+    the encrypted data could not be sent; the remaining data is then
+    sent by calling flush when the channel is writable.
+ */
+final class SslChannel
+{
+  SslChannel(SocketChannel ch, SSLEngine eng)
+  {
+    _ch=ch;
+    _eng=eng;
+    SSLSession s = eng.getSession();
+    _netIn = ByteBuffer.allocate(s.getPacketBufferSize());
+    _netOut = ByteBuffer.allocate(s.getPacketBufferSize());
+    _appIn = ByteBuffer.allocate(s.getApplicationBufferSize());
+    _appIn.flip(); // _appIn is kept in read mode
+  }
+
+  final SocketChannel channel()
+  {
+    return _ch;
+  }
+
+  final SSLSession session()
+  {
+    return _eng.getSession();
+  }
+
+  /** Run the TLS handshake. The channel must be in blocking mode.
+   */
+  final void handshake() throws IOException
+  {
+    _eng.beginHandshake();
+    for(;;) {
+      switch(_eng.getHandshakeStatus()) {
+        case NEED_WRAP:
+          wrap(ByteBuffer.allocate(0));
+          flush();
+          break;
+        case NEED_UNWRAP:
+          SSLEngineResult r = unwrap();
+          if(r.getStatus() == Status.CLOSED)
+            throw new EOFException();
+          if(r.getStatus() == Status.BUFFER_UNDERFLOW && readNet() < 0)
+            throw new EOFException();
+          break;
+        case NEED_TASK:
+          runTasks();
+          break;
+        default: // FINISHED or NOT_HANDSHAKING
+          return;
+      }
+    }
+  }
+
+  /** Read decrypted data.
+      @return the number of bytes read, zero if no data is available
+      (non blocking mode), or -1 if the connection closed.
+   */
+  final int read(byte[] b, int off, int len) throws IOException
+  {
+    while( ! _appIn.hasRemaining() ) {
+      if(_netIn.position() > 0) {
+        SSLEngineResult r = unwrap();
+        if(r.getStatus() == Status.CLOSED)
+          return -1;
+        manageHandshake(r.getHandshakeStatus());
+        if(r.getStatus() == Status.OK && r.bytesConsumed() > 0)
+          continue;
+      }
+      int n = readNet();
+      if(n <= 0)
+        return n;
+    }
+    int n = Math.min(len, _appIn.remaining());
+    _appIn.get(b, off, n);
+    return n;
+  }
+
+  /** Encrypt and send data. All data is encrypted, but in non
+      blocking mode, the encrypted data may not be sent in full.
+      @return true if all data was sent and false if the caller must
+      call flush when the channel is writable.
+   */
+  final boolean write(byte[] b, int off, int len) throws IOException
+  {
+    ByteBuffer src = ByteBuffer.wrap(b, off, len);
+    while(src.hasRemaining())
+      wrap(src);
+    return flush();
+  }
+
+  /** Send pending encrypted data.
+      @return true if no encrypted data is pending.
+   */
+  final boolean flush() throws IOException
+  {
+    _netOut.flip();
+    try {
+      while(_netOut.hasRemaining()) {
+        if(_ch.write(_netOut) == 0)
+          break;
+      }
+    }
+    finally {
+      _netOut.compact();
+    }
+    return _netOut.position() == 0;
+  }
+
+  final InputStream getInputStream()
+  {
+    return new InputStream() {
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          int n;
+          while((n=SslChannel.this.read(b, 0, 1)) == 0);
+          return n < 0 ? -1 : (b[0] & 0xFF);
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+          return SslChannel.this.read(b, off, len);
+        }
+      };
+  }
+
+  final void close()
+  {
+    try {
+      _eng.closeOutbound();
+      wrap(ByteBuffer.allocate(0));
+      flush();
+    }
+    catch(IOException ignore) {}
+    try { _ch.close(); }
+    catch(IOException ignore) {}
+  }
+
+  private final void wrap(ByteBuffer src) throws IOException
+  {
+    for(;;) {
+      SSLEngineResult r = _eng.wrap(src, _netOut);
+      if(r.getStatus() == Status.BUFFER_OVERFLOW) {
+        if( ! flush() ) // Non blocking and socket buffer full: grow
+          _netOut = grow(_netOut, _eng.getSession().getPacketBufferSize());
+        continue;
+      }
+      if(r.getStatus() == Status.CLOSED && src.hasRemaining())
+        throw new SSLException("Connection closed");
+      if(r.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+        runTasks();
+      return;
+    }
+  }
+
+  private final SSLEngineResult unwrap() throws IOException
+  {
+    for(;;) {
+      _netIn.flip();
+      _appIn.compact();
+      SSLEngineResult r;
+      try { r = _eng.unwrap(_netIn, _appIn); }
+      finally {
+        _netIn.compact();
+        _appIn.flip();
+      }
+      if(r.getStatus() == Status.BUFFER_OVERFLOW)
+        _appIn = growRead(_appIn, _eng.getSession().getApplicationBufferSize());
+      else {
+        if(r.getStatus() == Status.BUFFER_UNDERFLOW &&
+           _netIn.position() == _netIn.capacity())
+          _netIn = grow(_netIn, _eng.getSession().getPacketBufferSize());
+        if(r.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+          runTasks();
+        return r;
+      }
+    }
+  }
+
+  // Manage post handshake messages such as key updates.
+  private final void manageHandshake(HandshakeStatus hs) throws IOException
+  {
+    if(hs == HandshakeStatus.NEED_TASK)
+      runTasks();
+    else if(hs == HandshakeStatus.NEED_WRAP) {
+      wrap(ByteBuffer.allocate(0));
+      flush();
+    }
+  }
+
+  private final int readNet() throws IOException
+  {
+    return _ch.read(_netIn);
+  }
+
+  private final void runTasks()
+  {
+    Runnable task;
+    while((task = _eng.getDelegatedTask()) != null)
+      task.run();
+  }
+
+  // Grow a buffer in write mode.
+  private static final ByteBuffer grow(ByteBuffer b, int size)
+  {
+    ByteBuffer n = ByteBuffer.allocate(b.capacity()+size);
+    b.flip();
+    n.put(b);
+    return n;
+  }
+
+  // Grow a buffer in read mode.
+  private static final ByteBuffer growRead(ByteBuffer b, int size)
+  {
+    ByteBuffer n = ByteBuffer.allocate(b.capacity()+size);
+    n.put(b);
+    n.flip();
+    return n;
+  }
+
+  private final SocketChannel _ch;
+  private final SSLEngine _eng;
+  private ByteBuffer _netIn;  // Write mode
+  private ByteBuffer _netOut; // Write mode
+  private ByteBuffer _appIn;  // Read mode
+};
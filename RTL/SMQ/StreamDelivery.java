@@ -0,0 +1,92 @@
+package RTL.SMQ;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Adapts an IntfOnMsgStream subscriber to the message routing. The
+    SMQ stack passes the fragments of a fragmented message directly
+    to this class, in the context of the thread reading from the
+    broker; the fragments are copied into the message's MsgStream,
+    which is consumed by one of the subscription's delivery threads.
+    <p>
+    A delivery thread is reused for the next message and exits when
+    idle for IDLE_TIME seconds. A new thread is only created when the
+    fragments of several messages are received interleaved: each
+    message then needs a consumer, or the thread reading from the
+    broker would wait for a full MsgStream that is not consumed.
+ */
+final class StreamDelivery implements IntfOnMsg
+{
+  StreamDelivery(IntfOnMsgStream onStream, final ThreadFactory threadFactory)
+  {
+    _onStream=onStream;
+    ThreadFactory tf = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          return SMQ.newThread(threadFactory, r);
+        }
+      };
+    _pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                                   IDLE_TIME, TimeUnit.SECONDS,
+                                   new SynchronousQueue<Runnable>(), tf);
+  }
+
+  public void smqOnMsg(Msg msg)
+  {
+    if( ! msg.isFragment() ) {
+      _onStream.smqOnMsgStream(new MsgStream(msg));
+      return;
+    }
+    long key = Reassembler.key(msg.getPTid(), msg.getTid());
+    MsgStream s;
+    boolean start=false;
+    synchronized(this) {
+      s = _streamM.get(key);
+      if(s == null) {
+        if(msg.getFragmentOffset() != 0)
+          return; // Subscribed after the first fragment was received
+        s = new MsgStream(msg.getPTid(), msg.getTid(), msg.getSubTid(),
+                          QUEUE_SIZE);
+        _streamM.put(key, s);
+        start=true;
+      }
+      if(msg.isLastFragment())
+        _streamM.remove(key);
+    }
+    if(start)
+      start(s);
+    if(msg.getLength() > 0)
+      s.add(msg.getData());
+    if(msg.isLastFragment())
+      s.end();
+  }
+
+  // Connection closed: abort the streams being received.
+  final void abort()
+  {
+    synchronized(this) {
+      for(long key : _streamM.keys())
+        _streamM.get(key).abort();
+      _streamM.clear();
+    }
+  }
+
+  private final void start(final MsgStream s)
+  {
+    Runnable r = new Runnable() {
+        public void run() {
+          try { _onStream.smqOnMsgStream(s); }
+          finally { s.close(); }
+        }
+      };
+    _pool.execute(r);
+  }
+
+  private static final int QUEUE_SIZE = 16; // Fragments
+  private static final long IDLE_TIME = 30; // Seconds
+
+  private final IntfOnMsgStream _onStream;
+  private final ThreadPoolExecutor _pool;
+  private final LongMap<MsgStream> _streamM = new LongMap<MsgStream>();
+};
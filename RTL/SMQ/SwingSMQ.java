@@ -73,11 +73,12 @@ public class SwingSMQ extends SMQ
   }
 
   @Override
-  void smqOnMsg(final IntfOnMsg om, final Msg msg)
+  void smqOnMsg(final IntfOnMsg om, Msg msg)
   {
+    final Msg m = msg.detach();
     Runnable r = new Runnable() {
         public void run() {
-          om.smqOnMsg(msg);
+          om.smqOnMsg(m);
         }
       };
     SwingUtilities.invokeLater(r);
@@ -105,6 +106,28 @@ public class SwingSMQ extends SMQ
     SwingUtilities.invokeLater(r);
   }
 
+  @Override
+  void smqOnDisconnect(final IntfOnReconnect l, final SmqException e)
+  {
+    Runnable r = new Runnable() {
+        public void run() {
+          l.smqOnDisconnect(e);
+        }
+      };
+    SwingUtilities.invokeLater(r);
+  }
+
+  @Override
+  void smqOnReconnect(final IntfOnReconnect l, final int attempts)
+  {
+    Runnable r = new Runnable() {
+        public void run() {
+          l.smqOnReconnect(attempts);
+        }
+      };
+    SwingUtilities.invokeLater(r);
+  }
+
 
 
 };
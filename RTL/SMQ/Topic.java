@@ -0,0 +1,129 @@
+package RTL.SMQ;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A handle for publishing to a named topic and, optionally, a named
+    subtopic. The handle resolves the names to IDs once and the
+    publish methods then encode the message directly, without the
+    name lookup and the callbacks used by {@link
+    SMQ#publish(String,String,byte[])}.
+    <p>
+    The IDs are valid for one connection: the handle resolves the
+    names again after a reconnect. When the names are not yet known
+    to the client, the message is published using the publish method
+    taking the names, which creates the topic. Handles are cached and
+    are thread safe.
+    <pre>
+    Topic t = smq.topic("a/b").sub("x");
+    t.publish(data, 0, len);
+    </pre>
+    @see SMQ#topic
+ */
+public final class Topic
+{
+  Topic(SMQ smq, String topic, String subtopic)
+  {
+    _smq=smq;
+    _topic=topic;
+    _subtopic=subtopic;
+  }
+
+  /** Returns the handle for this topic and the named subtopic.
+   */
+  public Topic sub(String subtopic)
+  {
+    Topic t = _subs.get(subtopic);
+    if(t == null) {
+      t = new Topic(_smq, _topic, subtopic);
+      Topic x = _subs.putIfAbsent(subtopic, t);
+      if(x != null)
+        t = x;
+    }
+    return t;
+  }
+
+  public String getTopic()
+  {
+    return _topic;
+  }
+
+  /** Returns the subtopic name or null. */
+  public String getSubtopic()
+  {
+    return _subtopic;
+  }
+
+  public void publish(byte[] data) throws SmqException
+  {
+    publish(data, 0, data.length);
+  }
+
+  public void publish(byte[] b, int off, int len) throws SmqException
+  {
+    Ids ids = _ids;
+    if(ids.gen != _smq.generation() && (ids = resolve()) == null) {
+      byte[] data = b;
+      if(off != 0 || len != b.length) {
+        data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+      }
+      _smq.publish(_topic, _subtopic, data);
+      return;
+    }
+    _smq.publish(ids.tid, ids.subtid, b, off, len);
+  }
+
+  /** Publish the remaining bytes in the buffer. The buffer's
+      position is set to its limit.
+   */
+  public void publish(ByteBuffer data) throws SmqException
+  {
+    Ids ids = _ids;
+    if(ids.gen != _smq.generation() && (ids = resolve()) == null) {
+      byte[] b = new byte[data.remaining()];
+      data.get(b);
+      _smq.publish(_topic, _subtopic, b);
+      return;
+    }
+    _smq.publish(ids.tid, ids.subtid, data);
+  }
+
+  // Look up the IDs or return null if not known. The generation is
+  // read first: the IDs are resolved again if the connection closes
+  // during the lookup.
+  private final Ids resolve()
+  {
+    int gen = _smq.generation();
+    long tid = _smq.topic2tid(_topic);
+    long subtid = _subtopic == null ? 0 : _smq.subtopic2tid(_subtopic);
+    if(tid == 0 || (_subtopic != null && subtid == 0))
+      return null;
+    Ids ids = new Ids(tid, subtid, gen);
+    _ids=ids;
+    return ids;
+  }
+
+  // The IDs resolved for one connection. Immutable, thus a publisher
+  // never combines the IDs of one lookup with those of another.
+  private static final class Ids
+  {
+    Ids(long tid, long subtid, int gen)
+    {
+      this.tid=tid;
+      this.subtid=subtid;
+      this.gen=gen;
+    }
+
+    final long tid;
+    final long subtid;
+    final int gen; // SMQ.generation() when resolved
+  };
+
+  private final SMQ _smq;
+  private final String _topic;
+  private final String _subtopic; // May be null
+  private volatile Ids _ids = new Ids(0, 0, -1); // Not resolved
+  private final ConcurrentHashMap<String,Topic> _subs =
+    new ConcurrentHashMap<String,Topic>();
+};
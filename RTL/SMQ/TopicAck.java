@@ -0,0 +1,70 @@
+package RTL.SMQ;
+
+/** The broker's response to a create, subscribe, or createsub
+    request made using the future based API.
+    @see SMQ#createAsync(String,String)
+    @see SMQ#subscribeAsync(String,String,IntfOnMsg)
+    @see SMQ#createsubAsync(String)
+ */
+public final class TopicAck
+{
+  TopicAck(boolean accepted, String topic, long tid,
+           String subtopic, long subtid)
+  {
+    _accepted=accepted;
+    _topic=topic;
+    _tid=tid;
+    _subtopic=subtopic;
+    _subtid=subtid;
+  }
+
+  /** Returns true if the broker accepted the request.
+   */
+  public boolean isAccepted()
+  {
+    return _accepted;
+  }
+
+  /** Returns the topic requested or null for a createsub request.
+   */
+  public String getTopic()
+  {
+    return _topic;
+  }
+
+  /** Returns the topic ID created by the broker or zero for a
+      createsub request.
+   */
+  public long getTid()
+  {
+    return _tid;
+  }
+
+  /** Returns the subtopic requested or null if no subtopic was
+      requested.
+   */
+  public String getSubtopic()
+  {
+    return _subtopic;
+  }
+
+  /** Returns the subtopic ID created by the broker or zero if no
+      subtopic was requested.
+   */
+  public long getSubTid()
+  {
+    return _subtid;
+  }
+
+  public String toString()
+  {
+    return "TopicAck(" + _accepted + ", " + _topic + "=" + _tid + ", " +
+      _subtopic + "=" + _subtid + ")";
+  }
+
+  private final boolean _accepted;
+  private final String _topic;
+  private final long _tid;
+  private final String _subtopic;
+  private final long _subtid;
+};
@@ -0,0 +1,152 @@
+package RTL.SMQ;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** A topic and subtopic name to ID cache stored in a file. The cache
+    is loaded when created and is saved, in the background, shortly
+    after being modified. The file is written to a temporary file that
+    is then renamed, thus the file is either the previous or the new
+    version.
+    <p>
+    The IDs are assigned by the broker and the file stores the broker
+    URL; a file created for another broker is ignored. The file
+    format is: magic number, broker URL, number of entries, and the
+    entries: kind (topic or subtopic), ID, and name.
+ */
+final class TopicCache
+{
+  TopicCache(File file, String broker, ThreadFactory threadFactory)
+  {
+    _file=file;
+    _broker=broker;
+    _threadFactory=threadFactory;
+    load();
+  }
+
+  final long topic(String topic)
+  {
+    Long x = _topicM.get(topic);
+    return x == null ? 0 : x.longValue();
+  }
+
+  final long subtopic(String subtopic)
+  {
+    Long x = _subtopicM.get(subtopic);
+    return x == null ? 0 : x.longValue();
+  }
+
+  // Add or update an entry and schedule a save if modified.
+  final void put(boolean isSub, String name, long tid)
+  {
+    Long old = (isSub ? _subtopicM : _topicM).put(name, tid);
+    if(old == null || old.longValue() != tid)
+      modified();
+  }
+
+  final void remove(boolean isSub, String name)
+  {
+    if((isSub ? _subtopicM : _topicM).remove(name) != null)
+      modified();
+  }
+
+  // Mark the cache as modified and schedule a save unless scheduled.
+  private final void modified()
+  {
+    _dirty=true;
+    if(_saving.compareAndSet(false, true)) {
+      Runnable r = new Runnable() {
+          public void run() {
+            try { Thread.sleep(SAVE_DELAY); }
+            catch(InterruptedException e) {}
+            _saving.set(false);
+            save();
+          }
+        };
+      SMQ.newThread(_threadFactory, r).start();
+    }
+  }
+
+  // Write the file if modified.
+  final synchronized void save()
+  {
+    if( ! _dirty )
+      return;
+    _dirty=false;
+    File tmp = new File(_file.getPath() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeUTF(_broker);
+        out.writeInt(_topicM.size() + _subtopicM.size());
+        write(out, TOPIC, _topicM);
+        write(out, SUBTOPIC, _subtopicM);
+      }
+      finally {
+        out.close();
+      }
+      if( ! tmp.renameTo(_file) ) { // Windows: cannot replace
+        _file.delete();
+        if( ! tmp.renameTo(_file) )
+          throw new IOException("Cannot rename "+tmp);
+      }
+    }
+    catch(IOException e) {
+      tmp.delete();
+    }
+  }
+
+  private static final void write(DataOutputStream out, int kind,
+                                  Map<String,Long> m) throws IOException
+  {
+    for(Map.Entry<String,Long> e : m.entrySet()) {
+      out.writeByte(kind);
+      out.writeInt((int)e.getValue().longValue());
+      out.writeUTF(e.getKey());
+    }
+  }
+
+  private final void load()
+  {
+    DataInputStream in=null;
+    try {
+      in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(_file)));
+      if(in.readInt() != MAGIC || ! _broker.equals(in.readUTF()))
+        return;
+      for(int n = in.readInt() ; n > 0 ; n--) {
+        int kind = in.readByte();
+        long tid = in.readInt() & 0xFFFFFFFFL;
+        String name = in.readUTF();
+        (kind == SUBTOPIC ? _subtopicM : _topicM).put(name, tid);
+      }
+    }
+    catch(IOException e) {} // Missing or truncated: use what was read
+    finally {
+      if(in != null) {
+        try { in.close(); }
+        catch(IOException ignore) {}
+      }
+    }
+  }
+
+  private static final int MAGIC = 0x534d5143; // "SMQC"
+  private static final int TOPIC = 0;
+  private static final int SUBTOPIC = 1;
+  private static final long SAVE_DELAY = 1000; // Milliseconds
+
+  private final File _file;
+  private final String _broker;
+  private final ThreadFactory _threadFactory; // May be null
+  private final Map<String,Long> _topicM =
+    new ConcurrentHashMap<String,Long>();
+  private final Map<String,Long> _subtopicM =
+    new ConcurrentHashMap<String,Long>();
+  private volatile boolean _dirty=false;
+  private final AtomicBoolean _saving = new AtomicBoolean();
+};
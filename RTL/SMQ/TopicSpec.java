@@ -0,0 +1,62 @@
+package RTL.SMQ;
+
+/** A topic and optional subtopic to subscribe to, used by {@link
+    SMQ#subscribeAll}.
+ */
+public final class TopicSpec
+{
+  /** Subscribe to a topic and a subtopic.
+      @param topic the topic name. The topic name 'self' means the
+      client's own Ephemeral Topic ID.
+      @param subtopic the subtopic name or null for the topic's "catch
+      all".
+      @param onMsg the message callback.
+   */
+  public TopicSpec(String topic, String subtopic, IntfOnMsg onMsg)
+  {
+    _topic=topic;
+    _subtopic=subtopic;
+    _onMsg=onMsg;
+    _onStream=null;
+  }
+
+  /** Subscribe to a topic and a subtopic and receive the messages as
+      streams. A factory method and not a constructor overload, thus a
+      lambda passed to the constructor is not ambiguous.
+      @see SMQ#subscribeStream
+   */
+  public static TopicSpec stream(String topic, String subtopic,
+                                 IntfOnMsgStream onStream)
+  {
+    return new TopicSpec(topic, subtopic, null, onStream);
+  }
+
+  private TopicSpec(String topic, String subtopic, IntfOnMsg onMsg,
+                    IntfOnMsgStream onStream)
+  {
+    _topic=topic;
+    _subtopic=subtopic;
+    _onMsg=onMsg;
+    _onStream=onStream;
+  }
+
+  public String getTopic()
+  {
+    return _topic;
+  }
+
+  public String getSubtopic()
+  {
+    return _subtopic;
+  }
+
+  public String toString()
+  {
+    return _subtopic == null ? _topic : _topic + "/" + _subtopic;
+  }
+
+  final IntfOnMsg _onMsg;
+  final IntfOnMsgStream _onStream;
+  private final String _topic;
+  private final String _subtopic;
+};
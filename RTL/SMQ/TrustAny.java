@@ -14,9 +14,18 @@ public class TrustAny
 
   /**
      Returns a TrustManager set that enables the SMQ client to accept
-     any server certificate.
+     any server certificate. The same set is returned by each call,
+     thus the SMQ instances using it share one SSLContext and can
+     resume each other's TLS sessions; see {@link SMQ#setSSLContext}.
    */
   static public TrustManager[] cert()
+  {
+    return _cert;
+  }
+
+  private static final TrustManager[] _cert = create();
+
+  private static final TrustManager[] create()
   {
     TrustManager[] trustAllCerts = new TrustManager[] {
       new X509TrustManager() {
@@ -0,0 +1,177 @@
+package RTL.SMQ;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** A small benchmark harness modeled on JMH's average time mode. Each
+    benchmark is run for a number of warmup iterations followed by a
+    number of measurement iterations; an iteration runs the operation
+    in batches for a fixed time. The result is the mean time per
+    operation and the standard deviation across the measurement
+    iterations. The harness has no dependencies and the benchmarks
+    are compiled together with the SMQ source, in package RTL.SMQ,
+    thus the package private hot paths can be measured.
+    <pre>
+    java -cp out RTL.SMQ.Bench [-wi n] [-i n] [-t ms] [filter ...]
+    </pre>
+    @see SmqBench
+ */
+public final class Bench
+{
+  /** A benchmark: run(n) executes the measured operation n times.
+   */
+  public static abstract class Case
+  {
+    protected Case(String name)
+    {
+      _name=name;
+    }
+
+    public final String getName()
+    {
+      return _name;
+    }
+
+    protected void setup() throws Exception
+    {
+    }
+
+    protected abstract void run(int n) throws Exception;
+
+    /** Returns additional results, e.g. latency percentiles, or null.
+     */
+    protected String report()
+    {
+      return null;
+    }
+
+    protected void teardown() throws Exception
+    {
+    }
+
+    private final String _name;
+  };
+
+  /** Consume a value so the JIT cannot remove the computation.
+   */
+  public static void consume(long v)
+  {
+    _sink ^= v;
+  }
+
+  /** Returns the percentiles of the samples, which are sorted.
+   */
+  public static String percentiles(long[] ns, int n)
+  {
+    if(n == 0)
+      return "no samples";
+    Arrays.sort(ns, 0, n);
+    return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                         ns[(int)(n*0.5)]/1e3, ns[(int)(n*0.9)]/1e3,
+                         ns[(int)(n*0.99)]/1e3,
+                         ns[Math.min(n-1,(int)(n*0.999))]/1e3, ns[n-1]/1e3);
+  }
+
+  public Bench(int warmups, int iterations, long iterationMs)
+  {
+    _warmups=warmups;
+    _iterations=iterations;
+    _iterationNs=iterationMs*1000000;
+  }
+
+  /** Run the benchmark and print the result.
+   */
+  public void run(Case c) throws Exception
+  {
+    c.setup();
+    try {
+      int batch = calibrate(c);
+      for(int i=0 ; i < _warmups ; i++)
+        iteration(c, batch);
+      double[] r = new double[_iterations];
+      for(int i=0 ; i < _iterations ; i++)
+        r[i] = iteration(c, batch);
+      double mean=0;
+      for(double x : r) mean += x;
+      mean /= r.length;
+      double var=0;
+      for(double x : r) var += (x-mean)*(x-mean);
+      double sd = r.length > 1 ? Math.sqrt(var/(r.length-1)) : 0;
+      System.out.printf("%-28s %12.1f ns/op  +- %8.1f  %14.0f ops/s%n",
+                        c.getName(), mean, sd, 1e9/mean);
+      String rep = c.report();
+      if(rep != null)
+        System.out.printf("%-28s %s%n", "", rep);
+    }
+    finally {
+      c.teardown();
+    }
+  }
+
+  // Returns a batch size taking about 10 ms.
+  private final int calibrate(Case c) throws Exception
+  {
+    int n=1;
+    for(;;) {
+      long t = System.nanoTime();
+      c.run(n);
+      t = System.nanoTime() - t;
+      if(t > 10000000 || n >= 1<<24)
+        return n;
+      n *= 2;
+    }
+  }
+
+  // Returns the mean time per operation in nanoseconds.
+  private final double iteration(Case c, int batch) throws Exception
+  {
+    long ops=0;
+    long start = System.nanoTime();
+    long t;
+    do {
+      c.run(batch);
+      ops += batch;
+      t = System.nanoTime() - start;
+    } while(t < _iterationNs);
+    return (double)t / ops;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int warmups=3;
+    int iterations=5;
+    long ms=1000;
+    List<String> filters = new ArrayList<String>();
+    for(int i=0 ; i < args.length ; i++) {
+      if(args[i].equals("-wi"))
+        warmups = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-i"))
+        iterations = Integer.parseInt(args[++i]);
+      else if(args[i].equals("-t"))
+        ms = Long.parseLong(args[++i]);
+      else
+        filters.add(args[i]);
+    }
+    Bench b = new Bench(warmups, iterations, ms);
+    System.out.printf("# %s %s, %d warmup and %d measurement iterations of %d ms%n",
+                      System.getProperty("java.vm.name"),
+                      System.getProperty("java.version"),
+                      warmups, iterations, ms);
+    for(Case c : SmqBench.cases()) {
+      boolean run = filters.isEmpty();
+      for(String f : filters)
+        run |= c.getName().contains(f);
+      if(run)
+        b.run(c);
+    }
+    if(_sink == 42) // Never true in practice; keeps the sink alive
+      System.out.println();
+    System.exit(0);
+  }
+
+  private static long _sink;
+  private final int _warmups;
+  private final int _iterations;
+  private final long _iterationNs;
+};
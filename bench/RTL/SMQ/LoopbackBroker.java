@@ -0,0 +1,504 @@
+package RTL.SMQ;
+
+import java.io.*;
+import java.net.*;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.net.ssl.*;
+
+/** An in-process SMQ broker for the benchmarks. The broker accepts
+    TLS connections on the loopback interface, answers the HTTPS
+    upgrade request, and implements the subset of the SMQ protocol
+    used by the client: connect, create, createsub, subscribe,
+    unsubscribe, publish (including fragments), observe, unobserve,
+    ping, and disconnect. A published frame is forwarded, unmodified,
+    to the connections subscribed to the topic ID or owning the
+    ephemeral topic ID. Observers receive a change message when the
+    number of subscribers changes and when an observed client
+    disconnects.
+    <p>
+    The server certificate is a self signed certificate created by
+    keytool, for "localhost", in a temporary directory. Use {@link
+    #trustManagers} for the client's TrustManager. The client only
+    connects using HTTPS, thus the broker has no plain socket mode.
+    <p>
+    The broker can emulate a network: a latency and a bandwidth limit
+    applied to the frames sent to each client, and connections
+    dropped on request or at random intervals. The settings can be
+    changed at any time and apply to the frames sent after the
+    change.
+    <pre>
+    LoopbackBroker b = new LoopbackBroker();
+    b.setLatency(20000);       // 20 ms one-way, broker to client
+    b.setBandwidth(1000000);   // 1 MB/s per connection
+    b.setDisconnectInterval(5000);
+    SMQ smq = new SMQ(b.url(), b.trustManagers(), null, null, null);
+    </pre>
+ */
+public final class LoopbackBroker
+{
+  public LoopbackBroker() throws Exception
+  {
+    File dir = File.createTempFile("smqbench", "");
+    dir.delete();
+    dir.mkdirs();
+    File ks = new File(dir, "broker.p12");
+    String keytool = System.getProperty("java.home") + File.separator +
+      "bin" + File.separator + "keytool";
+    Process p = new ProcessBuilder(
+      keytool, "-genkeypair", "-alias", "broker", "-keyalg", "RSA",
+      "-keysize", "2048", "-validity", "3650", "-dname", "CN=localhost",
+      "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+      "-keystore", ks.getPath(), "-storepass", PASSWORD,
+      "-keypass", PASSWORD).redirectErrorStream(true).start();
+    drain(p.getInputStream());
+    if(p.waitFor() != 0)
+      throw new IOException("keytool failed");
+    KeyStore store = KeyStore.getInstance("PKCS12");
+    InputStream in = new FileInputStream(ks);
+    try { store.load(in, PASSWORD.toCharArray()); }
+    finally { in.close(); }
+    ks.delete();
+    dir.delete();
+    KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+      KeyManagerFactory.getDefaultAlgorithm());
+    kmf.init(store, PASSWORD.toCharArray());
+    TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+      TrustManagerFactory.getDefaultAlgorithm());
+    tmf.init(store);
+    _trustMgr = tmf.getTrustManagers();
+    SSLContext ctx = SSLContext.getInstance("TLS");
+    ctx.init(kmf.getKeyManagers(), null, null);
+    _server = ctx.getServerSocketFactory().createServerSocket(
+      0, 128, InetAddress.getByName("127.0.0.1"));
+    Thread t = new Thread(new Runnable() {
+        public void run() { acceptLoop(); }
+      }, "LoopbackBroker");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /** Returns the broker URL, e.g. https://localhost:12345/smq. */
+  public URL url() throws MalformedURLException
+  {
+    return new URL("https://localhost:" + _server.getLocalPort() + "/smq");
+  }
+
+  /** Returns a TrustManager accepting the broker's certificate. */
+  public TrustManager[] trustManagers()
+  {
+    return _trustMgr;
+  }
+
+  /** Delay the frames sent to the clients.
+      @param micros the one-way delay in microseconds, 0 disables.
+   */
+  public void setLatency(long micros)
+  {
+    _latencyNs = micros * 1000;
+  }
+
+  /** Limit the rate the frames are sent to each client.
+      @param bytesPerSec the limit, 0 disables.
+   */
+  public void setBandwidth(long bytesPerSec)
+  {
+    _bandwidth = bytesPerSec;
+  }
+
+  /** Drop a random connection at random intervals, without sending
+      a disconnect message.
+      @param ms the mean interval in milliseconds, 0 disables.
+   */
+  public void setDisconnectInterval(long ms)
+  {
+    synchronized(this) {
+      _disconnectMs=ms;
+      notifyAll();
+      if(ms == 0 || _disconnector != null)
+        return;
+      _disconnector = new Thread(new Runnable() {
+          public void run() { disconnectLoop(); }
+        }, "LoopbackBroker disconnect");
+    }
+    _disconnector.setDaemon(true);
+    _disconnector.start();
+  }
+
+  /** Drop all connections, without sending a disconnect message.
+   */
+  public void dropConnections()
+  {
+    for(Conn c : _conns)
+      c.close();
+  }
+
+  /** Returns the number of connected clients. */
+  public int getConnections()
+  {
+    return _conns.size();
+  }
+
+  public void close() throws IOException
+  {
+    _server.close();
+    synchronized(this) {
+      _disconnectMs=-1;
+      notifyAll();
+    }
+    dropConnections();
+  }
+
+  private final void disconnectLoop()
+  {
+    synchronized(this) {
+      for(;;) {
+        try {
+          if(_disconnectMs == 0)
+            wait();
+          else {
+            // Exponential distribution with mean _disconnectMs
+            double r = ThreadLocalRandom.current().nextDouble();
+            long ms = Math.max(1, (long)(-Math.log(1-r) * _disconnectMs));
+            wait(ms);
+          }
+        }
+        catch(InterruptedException e) {}
+        if(_disconnectMs < 0)
+          return;
+        int n = _conns.size();
+        if(_disconnectMs > 0 && n > 0) {
+          try { _conns.get(ThreadLocalRandom.current().nextInt(n)).close(); }
+          catch(IndexOutOfBoundsException e) {} // Closed concurrently
+        }
+      }
+    }
+  }
+
+  // Send a change message to the observers of tid.
+  private final void notifyChange(long tid, long subscribers)
+  {
+    byte[] b = new byte[8];
+    putInt(b, 0, (int)tid);
+    putInt(b, 4, (int)subscribers);
+    for(Conn c : _conns) {
+      if(c._observed.contains((int)tid)) {
+        try { c.send(MSG_CHANGE, b, 8); }
+        catch(IOException e) { c.close(); }
+      }
+    }
+  }
+
+  private final int subscribers(int tid)
+  {
+    int n=0;
+    for(Conn c : _conns) {
+      if(c._subs.contains(tid))
+        n++;
+    }
+    return n;
+  }
+
+  private final void acceptLoop()
+  {
+    try {
+      for(;;) {
+        Conn c = new Conn(_server.accept());
+        _conns.add(c);
+        Thread t = new Thread(c, "LoopbackBroker conn");
+        t.setDaemon(true);
+        t.start();
+      }
+    }
+    catch(IOException e) {} // Closed
+  }
+
+  private final synchronized int tid(String name)
+  {
+    Integer x = _topicM.get(name);
+    if(x == null)
+      _topicM.put(name, x = _nextTid++);
+    return x;
+  }
+
+  private static final void drain(InputStream in) throws IOException
+  {
+    byte[] b = new byte[512];
+    while(in.read(b) >= 0);
+  }
+
+  private final class Conn implements Runnable
+  {
+    Conn(Socket s)
+    {
+      _s=s;
+    }
+
+    final void close()
+    {
+      try { _s.close(); }
+      catch(IOException ignore) {}
+    }
+
+    // Send the frame directly, or queue a copy for the writer thread
+    // when emulating the network. The frames queued before the
+    // settings are disabled are sent first.
+    final void send(byte[] frame, int len) throws IOException
+    {
+      long latency = _latencyNs;
+      if(latency == 0 && _bandwidth == 0 && _outQ.isEmpty()) {
+        write(frame, len);
+        return;
+      }
+      byte[] b = new byte[len];
+      System.arraycopy(frame, 0, b, 0, len);
+      _outQ.add(new Delayed(System.nanoTime() + latency, b));
+      startWriter();
+    }
+
+    private final synchronized void write(byte[] frame, int len)
+      throws IOException
+    {
+      _out.write(frame, 0, len);
+      _out.flush();
+    }
+
+    private final synchronized void startWriter()
+    {
+      if(_writer != null)
+        return;
+      _writer = new Thread(new Runnable() {
+          public void run() { writeLoop(); }
+        }, "LoopbackBroker writer");
+      _writer.setDaemon(true);
+      _writer.start();
+    }
+
+    // Send the queued frames when due, at most _bandwidth bytes/sec.
+    private final void writeLoop()
+    {
+      long next=0; // When the link is free, for the bandwidth limit
+      try {
+        for(;;) {
+          Delayed d = _outQ.take();
+          if(d.frame == null)
+            return;
+          long now = System.nanoTime();
+          long bw = _bandwidth;
+          long due = d.due;
+          if(bw > 0) {
+            due = Math.max(due, next);
+            next = Math.max(now, next) + d.frame.length * 1000000000L / bw;
+          }
+          while(now < due) {
+            Thread.sleep((due-now) / 1000000, (int)((due-now) % 1000000));
+            now = System.nanoTime();
+          }
+          write(d.frame, d.frame.length);
+        }
+      }
+      catch(InterruptedException e) {}
+      catch(IOException e) { close(); }
+    }
+
+    private final void send(int type, byte[] body, int len)
+      throws IOException
+    {
+      byte[] frame = new byte[len+3];
+      frame[0] = (byte)((len+3) >> 8);
+      frame[1] = (byte)(len+3);
+      frame[2] = (byte)type;
+      System.arraycopy(body, 0, frame, 3, len);
+      send(frame, frame.length);
+    }
+
+    public void run()
+    {
+      try {
+        _s.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(
+          new BufferedInputStream(_s.getInputStream()));
+        _out = new BufferedOutputStream(_s.getOutputStream());
+        // The HTTPS request: respond and upgrade.
+        int crlf=0;
+        while(crlf < 4) {
+          int c = in.read();
+          if(c < 0)
+            return;
+          crlf = (c == '\r' || c == '\n') ? crlf+1 : 0;
+        }
+        _out.write(("HTTP/1.1 200 OK\r\nSmqBroker: 1.0\r\n" +
+                    "Content-Length: 0\r\n\r\n").getBytes("UTF-8"));
+        _out.flush();
+        // Let the client's HTTP stack consume the response before the
+        // SMQ frames arrive; it may otherwise buffer the first frame.
+        try { Thread.sleep(50); }
+        catch(InterruptedException e) {}
+        synchronized(LoopbackBroker.this) {
+          _etid = _nextTid++;
+        }
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(bo);
+        d.writeByte(1); // Version
+        d.writeInt(0x12345678); // Random number
+        d.write(_s.getInetAddress().getHostAddress().getBytes("UTF-8"));
+        send(MSG_INIT, bo.toByteArray(), bo.size());
+        byte[] frame = new byte[0xFFFF];
+        for(;;) {
+          int len = in.readUnsignedShort();
+          if(len < 3)
+            return;
+          frame[0] = (byte)(len >> 8);
+          frame[1] = (byte)len;
+          in.readFully(frame, 2, len-2);
+          if( ! dispatch(frame, len) )
+            return;
+        }
+      }
+      catch(IOException e) {} // Closed
+      finally {
+        _conns.remove(this);
+        close();
+        _outQ.add(new Delayed(0, null)); // Stop the writer
+        for(Integer tid : _subs)
+          notifyChange(tid, subscribers(tid));
+        notifyChange(_etid, 0);
+      }
+    }
+
+    // Returns false when the client disconnects.
+    private final boolean dispatch(byte[] frame, int len) throws IOException
+    {
+      int type = frame[2] & 0xFF;
+      byte[] rsp;
+      switch(type) {
+      case MSG_CONNECT:
+        rsp = new byte[5]; // Accepted and the etid
+        putInt(rsp, 1, _etid);
+        send(MSG_CONNACK, rsp, 5);
+        break;
+      case MSG_SUBSCRIBE:
+      case MSG_CREATE:
+      case MSG_CREATESUB: {
+        String name = new String(frame, 3, len-3, "UTF-8");
+        int id = type == MSG_CREATESUB ? tid("#" + name) :
+          (name.equals("self") ? _etid : tid(name));
+        rsp = new byte[len+2]; // Accepted, the ID, and the name
+        putInt(rsp, 1, id);
+        System.arraycopy(frame, 3, rsp, 5, len-3);
+        send(type == MSG_SUBSCRIBE ? MSG_SUBACK :
+             (type == MSG_CREATE ? MSG_CREATEACK : MSG_CREATESUBACK),
+             rsp, len+2);
+        if(type == MSG_SUBSCRIBE && _subs.add(id))
+          notifyChange(id, subscribers(id));
+        break;
+      }
+      case MSG_PUBLISH:
+      case MSG_PUBFRAG: {
+        int tid = getInt(frame, 3);
+        for(Conn c : _conns) {
+          if(c._subs.contains(tid) || c._etid == tid) {
+            try { c.send(frame, len); }
+            catch(IOException e) { c.close(); }
+          }
+        }
+        break;
+      }
+      case MSG_UNSUBSCRIBE: {
+        int tid = getInt(frame, 3);
+        if(_subs.remove(tid))
+          notifyChange(tid, subscribers(tid));
+        break;
+      }
+      case MSG_OBSERVE:
+        _observed.add(getInt(frame, 3));
+        break;
+      case MSG_UNOBSERVE:
+        _observed.remove(getInt(frame, 3));
+        break;
+      case MSG_DISCONNECT:
+        return false;
+      case MSG_PING:
+        send(MSG_PONG, new byte[0], 0);
+        break;
+      }
+      return true;
+    }
+
+    private final Socket _s;
+    private OutputStream _out;
+    private int _etid;
+    private final Set<Integer> _subs =
+      ConcurrentHashMap.<Integer>newKeySet();
+    private final Set<Integer> _observed =
+      ConcurrentHashMap.<Integer>newKeySet();
+    private final LinkedBlockingQueue<Delayed> _outQ =
+      new LinkedBlockingQueue<Delayed>();
+    private Thread _writer; // Guarded by this
+  };
+
+  // A frame queued for a client and when it is due.
+  private static final class Delayed
+  {
+    Delayed(long due, byte[] frame)
+    {
+      this.due=due;
+      this.frame=frame;
+    }
+
+    final long due; // System.nanoTime()
+    final byte[] frame; // null stops the writer
+  };
+
+  private static final int getInt(byte[] b, int pos)
+  {
+    return ((b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16) |
+      ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+  }
+
+  private static final void putInt(byte[] b, int pos, int v)
+  {
+    b[pos] = (byte)(v >> 24);
+    b[pos+1] = (byte)(v >> 16);
+    b[pos+2] = (byte)(v >> 8);
+    b[pos+3] = (byte)v;
+  }
+
+  private static final String PASSWORD = "smqbench";
+  private static final int MSG_INIT         = 1;
+  private static final int MSG_CONNECT      = 2;
+  private static final int MSG_CONNACK      = 3;
+  private static final int MSG_SUBSCRIBE    = 4;
+  private static final int MSG_SUBACK       = 5;
+  private static final int MSG_CREATE       = 6;
+  private static final int MSG_CREATEACK    = 7;
+  private static final int MSG_PUBLISH      = 8;
+  private static final int MSG_UNSUBSCRIBE  = 9;
+  private static final int MSG_DISCONNECT   = 11;
+  private static final int MSG_PING         = 12;
+  private static final int MSG_PONG         = 13;
+  private static final int MSG_OBSERVE      = 14;
+  private static final int MSG_UNOBSERVE    = 15;
+  private static final int MSG_CHANGE       = 16;
+  private static final int MSG_CREATESUB    = 17;
+  private static final int MSG_CREATESUBACK = 18;
+  private static final int MSG_PUBFRAG      = 19;
+
+  private final ServerSocket _server;
+  private final TrustManager[] _trustMgr;
+  private final CopyOnWriteArrayList<Conn> _conns =
+    new CopyOnWriteArrayList<Conn>();
+  private final Map<String,Integer> _topicM = // Guarded by this
+    new HashMap<String,Integer>();
+  private int _nextTid=100; // Guarded by this
+  private volatile long _latencyNs=0;
+  private volatile long _bandwidth=0; // Bytes/sec
+  private long _disconnectMs=0; // Guarded by this; -1 when closed
+  private Thread _disconnector; // Guarded by this
+};
@@ -0,0 +1,448 @@
+package RTL.SMQ;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** The SMQ client benchmarks:
+    <ul>
+    <li>encode.*: frame encoding, a control message (OutMsg) and
+    PUBLISH frames.
+    <li>decode.*: decoding and dispatching PUBLISH frames read from
+    an in-memory stream, with one subscription.
+    <li>route.*: as decode, with 10, 1k, and 100k subscriptions and
+    the frames spread across the subscribed topics.
+    <li>e2e.*: publish to callback over a TLS connection to the
+    in-process {@link LoopbackBroker}, using the standard threads and
+    the EventLoop: the one-way latency, and the throughput.
+    <li>e2e.connect: connect, including the TLS handshake and the
+    HTTPS upgrade, and close, using the standard threads and the
+    EventLoop. The report shows how many handshakes resumed a TLS
+    session.
+    <li>clients.*: the throughput with several publishing and
+    subscribing clients, e.g. clients.4x4 for four publishers and four
+    subscribers. An operation is one message published and delivered
+    to all subscribers.
+    </ul>
+    The e2e and clients benchmarks emulate a network when the system
+    properties bench.latency (microseconds) and bench.bandwidth
+    (bytes/sec) are set; see {@link LoopbackBroker}.
+ */
+public final class SmqBench
+{
+  static List<Bench.Case> cases()
+  {
+    List<Bench.Case> l = new ArrayList<Bench.Case>();
+    l.add(new EncodeCreate());
+    l.add(new EncodePublish(32));
+    l.add(new EncodePublish(1024));
+    l.add(new Decode("decode.publish.32", 1, 32));
+    l.add(new Decode("decode.publish.1k", 1, 1024));
+    l.add(new Decode("route.10", 10, 32));
+    l.add(new Decode("route.1k", 1000, 32));
+    l.add(new Decode("route.100k", 100000, 32));
+    l.add(new Latency(false));
+    l.add(new Latency(true));
+    l.add(new Throughput(false, 32));
+    l.add(new Throughput(true, 32));
+    l.add(new Connect(false));
+    l.add(new Connect(true));
+    l.add(new Clients(4, 1, 32));
+    l.add(new Clients(1, 4, 32));
+    l.add(new Clients(4, 4, 32));
+    l.add(new Clients(16, 16, 32));
+    return l;
+  }
+
+  // An SMQ instance without threads and without a connection.
+  private static final SMQ detached() throws Exception
+  {
+    return new SMQ((EventLoop)null, new URL("https://localhost/smq"),
+                   null, null, null);
+  }
+
+  private static final class EncodeCreate extends Bench.Case
+  {
+    EncodeCreate()
+    {
+      super("encode.create");
+    }
+
+    protected void setup() throws Exception
+    {
+      _smq = detached();
+    }
+
+    protected void run(int n) throws Exception
+    {
+      for(int i=0 ; i < n ; i++) {
+        byte[] b = _smq.benchEncode(6, "devices/temperature"); // MSG_CREATE
+        Bench.consume(b[1]);
+        _smq.benchRelease(b);
+      }
+    }
+
+    private SMQ _smq;
+  };
+
+  private static final class EncodePublish extends Bench.Case
+  {
+    EncodePublish(int size)
+    {
+      super("encode.publish." + (size < 1024 ? size+"" : size/1024+"k"));
+      _data = new byte[size];
+    }
+
+    protected void setup() throws Exception
+    {
+      _smq = detached();
+    }
+
+    protected void run(int n)
+    {
+      for(int i=0 ; i < n ; i++) {
+        byte[] b = _smq.benchEncodePublish(i, 0, _data, 0, _data.length);
+        Bench.consume(b[1]);
+        _smq.benchRelease(b);
+      }
+    }
+
+    private final byte[] _data;
+    private SMQ _smq;
+  };
+
+  // Returns the frames repeatedly.
+  private static final class CyclicStream extends InputStream
+  {
+    CyclicStream(byte[] data)
+    {
+      _data=data;
+    }
+
+    public int read()
+    {
+      int c = _data[_pos++] & 0xFF;
+      if(_pos == _data.length)
+        _pos=0;
+      return c;
+    }
+
+    public int read(byte[] b, int off, int len)
+    {
+      int n = Math.min(len, _data.length - _pos);
+      System.arraycopy(_data, _pos, b, off, n);
+      _pos += n;
+      if(_pos == _data.length)
+        _pos=0;
+      return n;
+    }
+
+    private final byte[] _data;
+    private int _pos=0;
+  };
+
+  private static final class Decode extends Bench.Case
+  {
+    Decode(String name, int routes, int size)
+    {
+      super(name);
+      _routes=routes;
+      _size=size;
+    }
+
+    protected void setup() throws Exception
+    {
+      _smq = detached();
+      _smq.benchRoutes(_routes, new IntfOnMsg() {
+          public void smqOnMsg(Msg msg) {
+            Bench.consume(msg.getTid() + msg.getLength());
+          }
+        });
+      // 4096 frames, the topic IDs spread across the routes.
+      byte[] data = new byte[_size];
+      int frameLen = 15 + _size;
+      byte[] stream = new byte[4096*frameLen];
+      for(int i=0 ; i < 4096 ; i++) {
+        long tid = 1 + (i*7919L) % _routes;
+        byte[] f = _smq.benchEncodePublish(tid, 0, data, 0, _size);
+        System.arraycopy(f, 0, stream, i*frameLen, frameLen);
+      }
+      _smq.benchAttach(new CyclicStream(stream));
+    }
+
+    protected void run(int n) throws Exception
+    {
+      for(int i=0 ; i < n ; i++)
+        _smq.benchDispatch();
+    }
+
+    private final int _routes;
+    private final int _size;
+    private SMQ _smq;
+  };
+
+  private static final LoopbackBroker broker() throws Exception
+  {
+    LoopbackBroker b = new LoopbackBroker();
+    b.setLatency(Long.getLong("bench.latency", 0));
+    b.setBandwidth(Long.getLong("bench.bandwidth", 0));
+    return b;
+  }
+
+  // Base class for the e2e benchmarks: a publisher and a subscriber
+  // connected to a loopback broker.
+  private static abstract class Loopback extends Bench.Case
+  {
+    Loopback(String name, boolean nio)
+    {
+      super(name + (nio ? ".nio" : ""));
+      _nio=nio;
+    }
+
+    protected void setup() throws Exception
+    {
+      _broker = broker();
+      if(_nio)
+        _loop = new EventLoop();
+      _pub = connect();
+      _sub = connect();
+      _sub.subscribeAsync("bench", new IntfOnMsg() {
+          public void smqOnMsg(Msg msg) { onMsg(msg); }
+        }).get();
+      _tid = _pub.createAsync("bench").get().getTid();
+    }
+
+    private final SMQ connect() throws Exception
+    {
+      SMQ smq = _nio ?
+        new SMQ(_loop, _broker.url(), _broker.trustManagers(), null, null) :
+        new SMQ(_broker.url(), _broker.trustManagers(), null, null, null);
+      smq.connect("bench".getBytes("UTF-8"), null, null);
+      return smq;
+    }
+
+    protected abstract void onMsg(Msg msg);
+
+    protected void teardown() throws Exception
+    {
+      _pub.close(false, null);
+      _sub.close(false, null);
+      if(_loop != null)
+        _loop.close();
+      _broker.close();
+    }
+
+    private final boolean _nio;
+    private LoopbackBroker _broker;
+    private EventLoop _loop;
+    protected SMQ _pub;
+    protected SMQ _sub;
+    protected long _tid;
+  };
+
+  // One message at a time: the time from publish to the callback.
+  private static final class Latency extends Loopback
+  {
+    Latency(boolean nio)
+    {
+      super("e2e.latency", nio);
+    }
+
+    protected void run(int n) throws Exception
+    {
+      byte[] b = new byte[8];
+      _waiter = Thread.currentThread();
+      for(int i=0 ; i < n ; i++) {
+        _received=false;
+        long t = System.nanoTime();
+        for(int j=0 ; j < 8 ; j++)
+          b[j] = (byte)(t >> (56 - j*8));
+        _pub.publish(_tid, 0, b, 0, 8);
+        while( ! _received )
+          LockSupport.parkNanos(this, 100000);
+      }
+    }
+
+    protected void onMsg(Msg msg)
+    {
+      long now = System.nanoTime();
+      byte[] b = msg.getData();
+      long t=0;
+      for(int j=0 ; j < 8 ; j++)
+        t = (t << 8) | (b[j] & 0xFF);
+      _samples[_nsamples++ & (_samples.length-1)] = now - t;
+      _received=true;
+      LockSupport.unpark(_waiter);
+    }
+
+    protected String report()
+    {
+      int n = Math.min(_nsamples, _samples.length);
+      return "one-way " + Bench.percentiles(_samples.clone(), n);
+    }
+
+    private final long[] _samples = new long[1<<20];
+    private int _nsamples=0; // Callback thread
+    private volatile boolean _received;
+    private volatile Thread _waiter;
+  };
+
+  // Publish a batch and wait for all messages.
+  private static final class Throughput extends Loopback
+  {
+    Throughput(boolean nio, int size)
+    {
+      super("e2e.throughput." + size, nio);
+      _data = new byte[size];
+    }
+
+    protected void run(int n) throws Exception
+    {
+      long target = _count.get() + n;
+      _target=target;
+      _waiter = Thread.currentThread();
+      for(int i=0 ; i < n ; i++)
+        _pub.publish(_tid, 0, _data, 0, _data.length);
+      while(_count.get() < target)
+        LockSupport.parkNanos(this, 100000);
+    }
+
+    protected void onMsg(Msg msg)
+    {
+      if(_count.incrementAndGet() >= _target)
+        LockSupport.unpark(_waiter);
+    }
+
+    private final byte[] _data;
+    private final AtomicLong _count = new AtomicLong();
+    private volatile long _target;
+    private volatile Thread _waiter;
+  };
+
+  // A new SMQ instance per connection; the instances share the
+  // SSLContext, thus the TLS sessions.
+  private static final class Connect extends Bench.Case
+  {
+    Connect(boolean nio)
+    {
+      super("e2e.connect" + (nio ? ".nio" : ""));
+      _nio=nio;
+    }
+
+    protected void setup() throws Exception
+    {
+      _broker = broker();
+      if(_nio)
+        _loop = new EventLoop();
+    }
+
+    protected void run(int n) throws Exception
+    {
+      for(int i=0 ; i < n ; i++) {
+        SMQ smq = _nio ?
+          new SMQ(_loop, _broker.url(), _broker.trustManagers(), null, null) :
+          new SMQ(_broker.url(), _broker.trustManagers(), null, null, null);
+        smq.connect("bench".getBytes("UTF-8"), null, null);
+        smq.close(false, null);
+        Metrics m = smq.getMetrics();
+        _handshakes += m.getHandshakes();
+        _resumed += m.getResumedHandshakes();
+      }
+    }
+
+    protected String report()
+    {
+      return "resumed " + _resumed + " of " + _handshakes + " TLS handshakes";
+    }
+
+    protected void teardown() throws Exception
+    {
+      if(_loop != null)
+        _loop.close();
+      _broker.close();
+    }
+
+    private final boolean _nio;
+    private LoopbackBroker _broker;
+    private EventLoop _loop;
+    private long _handshakes;
+    private long _resumed;
+  };
+
+  // Publishers and subscribers, all managed by one EventLoop. The
+  // messages are published round robin using the publishers.
+  private static final class Clients extends Bench.Case
+  {
+    Clients(int pubs, int subs, int size)
+    {
+      super("clients." + pubs + "x" + subs + "." + size);
+      _pubs = new SMQ[pubs];
+      _subs = new SMQ[subs];
+      _data = new byte[size];
+    }
+
+    protected void setup() throws Exception
+    {
+      _broker = broker();
+      _loop = new EventLoop();
+      for(int i=0 ; i < _subs.length ; i++) {
+        _subs[i] = connect();
+        _subs[i].subscribeAsync("bench", new IntfOnMsg() {
+            public void smqOnMsg(Msg msg) {
+              if(_count.incrementAndGet() >= _target)
+                LockSupport.unpark(_waiter);
+            }
+          }).get();
+      }
+      _tids = new long[_pubs.length];
+      for(int i=0 ; i < _pubs.length ; i++) {
+        _pubs[i] = connect();
+        _tids[i] = _pubs[i].createAsync("bench").get().getTid();
+      }
+    }
+
+    private final SMQ connect() throws Exception
+    {
+      SMQ smq = new SMQ(_loop, _broker.url(), _broker.trustManagers(),
+                        null, null);
+      smq.connect("bench".getBytes("UTF-8"), null, null);
+      return smq;
+    }
+
+    protected void run(int n) throws Exception
+    {
+      long target = _count.get() + (long)n * _subs.length;
+      _target=target;
+      _waiter = Thread.currentThread();
+      for(int i=0 ; i < n ; i++) {
+        int ix = i % _pubs.length;
+        _pubs[ix].publish(_tids[ix], 0, _data, 0, _data.length);
+      }
+      while(_count.get() < target)
+        LockSupport.parkNanos(this, 100000);
+    }
+
+    protected void teardown() throws Exception
+    {
+      for(SMQ smq : _pubs)
+        smq.close(false, null);
+      for(SMQ smq : _subs)
+        smq.close(false, null);
+      _loop.close();
+      _broker.close();
+    }
+
+    private final SMQ[] _pubs;
+    private final SMQ[] _subs;
+    private final byte[] _data;
+    private long[] _tids;
+    private LoopbackBroker _broker;
+    private EventLoop _loop;
+    private final AtomicLong _count = new AtomicLong();
+    private volatile long _target;
+    private volatile Thread _waiter;
+  };
+};